@@ -1,11 +1,13 @@
 package com.ericwadkins.audioanalyzer;
 
 import javax.sound.sampled.*;
-import javax.swing.*;
-import java.awt.*;
-import java.awt.event.*;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ShortBuffer;
+import java.util.List;
 
 /**
  * Created by ericwadkins on 10/3/16.
@@ -19,27 +21,81 @@ public class Analyzer {
     public static final int BASELINE = 50;
 
     public static final int DISPLAY_FPS = 10; // Lower if data is not showing properly
+    public static final boolean SHOW_SPECTROGRAM = false; // Also open a scrolling spectrogram window
+    public static final double SPECTROGRAM_SECONDS = 10.0; // History shown by the spectrogram
 
     // Audio settings
     public static final int SAMPLES_PER_SECOND = 8192; // Linearly shifts frequencies to the left (wider frequency range)
     public static final int UPDATES_PER_SECOND = 8; // Linearly decreases data points (-), decreases update time (+)
+    public static final int HOP_SIZE = 0; // Samples between overlapping frames, 0 analyzes non-overlapping blocks
+    public static final STFT.Window WINDOW = STFT.Window.HANN; // Window function for overlapping frames
+    public static final boolean SLIDING_DFT = false; // Update overlapping frames sample by sample (rectangular window)
+    public static final int RESEED_INTERVAL = 8192; // Samples between full FFTs that bound sliding DFT drift
+    public static final int CAPTURE_BLOCKS = 16; // Blocks buffered between the capture and analysis threads
+    public static final SampleRing.Policy CAPTURE_POLICY = SampleRing.Policy.DROP_OLDEST; // When analysis falls behind
+
+    // Serial settings
+    public static final String SERIAL_PORT = "/dev/cu.usbmodem1421"; // Port used unless another is given with --port
+    public static final int BAUD_RATE = 9600;
+    public static final String ZONES = ""; // Zones for Zone.parse, such as "bass,mids,highs", or empty for one fixture
 
     // Analyzer settings
     public static final double MAX_VALUE = 250.0;
     public static final double BASS_UPPER_BOUND = 0.04 * (8192.0 / SAMPLES_PER_SECOND);
 
     public static final int STACK_SIZE = 10;
+    public static final int PEAK_WIDTH = 2; // Bins on either side a peak must not be exceeded by
 
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    public static final HashMap<Integer, Canvas> canvasMap = new HashMap<>();
-    public static final HashMap<Integer, Frame> frameMap = new HashMap<>();
-    public static int idCount = 0;
-    public static int openCount = 0;
-
     public static long count = 0;
 
+    private static volatile Thread analysisThread = null;
+
+    // Pipelines keep per-frame state, so callers without their own get one per thread
+    private static final ThreadLocal<SpectrumPipeline> defaultPipeline =
+            ThreadLocal.withInitial(SpectrumPipeline::createDefault);
+    private static final ThreadLocal<PeakDetector> defaultDetector =
+            ThreadLocal.withInitial(() -> new PeakDetector(PEAK_WIDTH));
+
+    // Usage: Analyzer [--headless] [--port name | --tty path] [--baud rate] [--zones zones]
     public static void main(String args[]) {
+        // Headless runs as a service without loading any display classes
+        boolean headless = Boolean.getBoolean("java.awt.headless");
+        // The serial port through RXTX, or a pseudo-terminal or other file read and written directly
+        String port = SERIAL_PORT;
+        String tty = null;
+        int baudRate = BAUD_RATE;
+        String zones = ZONES;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--headless")) {
+                headless = true;
+            }
+            else if (i + 1 == args.length && (arg.equals("--port") || arg.equals("--tty") || arg.equals("--baud")
+                    || arg.equals("--zones"))) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            else if (arg.equals("--port")) {
+                port = args[++i];
+            }
+            else if (arg.equals("--tty")) {
+                tty = args[++i];
+            }
+            else if (arg.equals("--baud")) {
+                baudRate = Integer.parseInt(args[++i]);
+            }
+            else if (arg.equals("--zones")) {
+                zones = args[++i];
+            }
+            else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        Zone[] outputZones = zones.isEmpty() ? null : Zone.parse(zones);
+        Transport transport = tty != null ? new FileTransport(new File(tty), baudRate)
+                : new RxtxTransport(port, baudRate);
+
         // Create format and get line info
         TargetDataLine line = null;
         AudioFormat format = new AudioFormat(SAMPLES_PER_SECOND, 16, 1, true, false);
@@ -56,142 +112,241 @@ public class Analyzer {
             e.printStackTrace();
         }
 
-        SerialComm comm = new SerialComm("/dev/cu.usbmodem1421", 9600);
+        SerialComm comm = new SerialComm(transport);
         try {
             comm.start();
-        } catch (Exception e) {
-            System.out.println("WARNING: Failed to create serial comm");
+        } catch (Exception | LinkageError e) {
+            System.out.println("WARNING: Failed to create serial comm on " + transport);
             comm = null;
         }
 
         System.out.println("\n***********************");
         System.out.println("Starting Audio Analyzer");
         System.out.println("***********************\n");
-        start(line, format, comm);
+        start(line, format, comm, headless, outputZones);
+    }
+
+    // Stops start() after the current frame
+    public static void stop() {
+        Thread thread = analysisThread;
+        if (thread != null) {
+            thread.interrupt();
+        }
     }
 
     public static void start(TargetDataLine line, AudioFormat format, SerialComm comm) {
-        // Create display
-        int display = createDisplay();
+        start(line, format, comm, false);
+    }
 
-        // Create raw data array
-        byte[] raw = new byte[(int) format.getSampleRate() * format.getFrameSize() / UPDATES_PER_SECOND];
+    // Analyzes the line until stopped. Headless, nothing from java.awt or javax.swing is loaded, only the serial
+    // comm is driven, and the analysis stops cleanly when the process is terminated.
+    public static void start(TargetDataLine line, AudioFormat format, SerialComm comm, boolean headless) {
+        start(line, format, comm, headless, null);
+    }
 
-        // Begin audio capture
+    // Drives a light per zone instead of a single one, unless zones is null
+    public static void start(TargetDataLine line, AudioFormat format, SerialComm comm, boolean headless,
+                             Zone[] zones) {
+        Thread analysis = Thread.currentThread();
+        analysisThread = analysis;
+
+        // Create displays, closing the last one stops the analysis
+        int display = 0;
+        int spectrogram = 0;
+        if (headless) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                stop();
+                try {
+                    analysis.join(1000);
+                } catch (InterruptedException e) {
+                    // Exiting anyway
+                }
+            }, "Shutdown"));
+        }
+        else {
+            Display.onAllClosed(Analyzer::stop);
+            display = createDisplay();
+            spectrogram = SHOW_SPECTROGRAM ? createDisplay("Spectrogram", Display.Style.SPECTROGRAM) : 0;
+        }
+
+        // Create raw data array, holding one block or, when overlapping, one hop of a longer window
+        FrameAnalyzer analyzer = new FrameAnalyzer((int) format.getSampleRate());
+        EventGenerator events = new EventGenerator();
+        ZoneGenerator zoneEvents = zones != null ? new ZoneGenerator(zones) : null;
+        byte[] raw = new byte[analyzer.getReadSize() * format.getFrameSize()];
+
+        // Begin audio capture on its own thread, so a slow frame never stalls the line
+        SampleRing ring = new SampleRing(CAPTURE_BLOCKS, raw.length, CAPTURE_POLICY);
+        final TargetDataLine captureLine = line;
+        Thread capture = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    byte[] block = ring.claim();
+                    ring.publish(captureLine.read(block, 0, block.length));
+                }
+            } catch (InterruptedException e) {
+                // Capture stopped
+            }
+        }, "Audio capture");
+        capture.setDaemon(true);
         line.start();
+        capture.start();
 
-        ArrayList<Frame> stack = new ArrayList<>(STACK_SIZE);
-        int lastHue = -1;
-        int lastSaturation = -1;
-        int lastBrightness = -1;
         int sentCount = 0;
-        while (true) {
-            // Read data from the data line
-            int n = line.read(raw, 0, raw.length);
-
-            // Process the raw data
-            Frame frame = process(raw, stack);
-
-            // Analyze the processed data, modifies and returns frame
-            frame = analyze(frame);
-
-            FrameEvent event = new FrameEvent();
-
-            int hue = (int) ((((double) frame.peakAverage * COLOR_SPECTRUMS / frame.processed.length) % 1) * 360);
-            int saturation = 100; // full color
-            int brightness = 50;
-            if (frame.maxBassIntensityDifference > 0.05) {
-                brightness = (int) (50 + frame.maxBassIntensityDifference * 50);
-                System.out.println(frame.maxBassIntensityDifference);
-                if (frame.maxBassIntensityDifference > 0.4) {
-                    saturation = 0; // white
-                }
+        long reportedDrops = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            // Take the next block read from the data line
+            int n;
+            try {
+                n = ring.take(raw);
+            } catch (InterruptedException e) {
+                break;
             }
-
-            if (hue != lastHue) {
-                event.changeHue(hue);
-                lastHue = hue;
+            if (ring.getDropped() != reportedDrops) {
+                reportedDrops = ring.getDropped();
+                System.out.println("WARNING: Analysis fell behind, dropped " + reportedDrops + " blocks ("
+                        + ring.getOverruns() + " overruns, " + ring.getUnderruns() + " underruns)");
             }
-            if (saturation != lastSaturation) {
-                event.changeSaturation(saturation);
-                lastSaturation = saturation;
+
+            // Process and analyze the raw data, the frame is added to the history
+            Frame frame = analyzer.next(raw, n);
+            if (frame == null) {
+                continue;
             }
-            if (brightness != lastBrightness) {
-                event.changeBrightness(brightness);
-                lastBrightness = brightness;
+            if (count == 0) {
+                reportStartup(headless);
             }
 
-            // If something has changed
-            if (event.getType() > 0) {
-                sentCount++;
-                byte[] bytes = event.getBytes();
-                System.out.print("Packet " + sentCount + ": ");
-                for (int i = bytes.length - 1; i >= 0; i--) {
-                    byte b = bytes[i];
-                    for (int j = 0; j < 8; j++) {
-                        System.out.print((b & (1 << (7 - j))) != 0 ? 1 : 0);
-                    }
-                    System.out.print(" ");
-                }
-                System.out.println();
-                /*System.out.print("Extracted ");
-                int[] values = FrameEvent.extract(bytes);
-                for (int v : values) {
-                    System.out.print(v + " ");
-                }
-                System.out.println();
-                System.out.println();*/
-
-                // Send over serial comm
+            if (!headless && frame.maxBassIntensityDifference > 0.05) {
+                System.out.println(frame.maxBassIntensityDifference);
+            }
+            // With zones, send the changes of every zone instead of the single fixture
+            if (zoneEvents != null) {
+                ZoneEvent zoneEvent = zoneEvents.next(frame);
                 if (comm != null) {
-                    comm.send(bytes);
+                    comm.send(zoneEvent);
                 }
             }
+            else {
+                FrameEvent event = events.next(frame);
+
+                // If something has changed
+                if (event.getType() > 0) {
+                    sentCount++;
+                    // Only the debug print needs the packet as an array, the serial link encodes it itself
+                    if (!headless) {
+                        byte[] bytes = event.getBytes();
+                        System.out.print("Packet " + sentCount + ": ");
+                        for (int i = bytes.length - 1; i >= 0; i--) {
+                            byte b = bytes[i];
+                            for (int j = 0; j < 8; j++) {
+                                System.out.print((b & (1 << (7 - j))) != 0 ? 1 : 0);
+                            }
+                            System.out.print(" ");
+                        }
+                        System.out.println();
+                        /*System.out.print("Extracted ");
+                        int[] values = FrameEvent.extract(bytes);
+                        for (int v : values) {
+                            System.out.print(v + " ");
+                        }
+                        System.out.println();
+                        System.out.println();*/
+                    }
 
-
-            // Add the frame to the stack for the next frame
-            if (stack.size() == STACK_SIZE) {
-                stack.remove(0);
+                    // Send over serial comm, merged with any change still waiting for the line
+                    if (comm != null) {
+                        comm.send(event);
+                    }
+                }
             }
-            stack.add(frame);
 
             // Update the data to be displayed
-            updateDisplay(display, frame);
+            if (display != 0) {
+                updateDisplay(display, frame);
+            }
+            if (spectrogram != 0) {
+                updateDisplay(spectrogram, frame);
+            }
             count++;
             //System.out.println(count);
         }
+
+        // Shut down
+        capture.interrupt();
+        line.stop();
+        line.close();
+        if (comm != null) {
+            comm.stop();
+        }
+        if (!headless) {
+            Display.closeAll();
+        }
+        analysisThread = null;
+        System.out.println("Stopped after " + count + " frames");
+    }
+
+    // Prints the time from the start of the JVM to the first frame and the memory in use
+    private static void reportStartup(boolean headless) {
+        long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+        Runtime runtime = Runtime.getRuntime();
+        long heap = (runtime.totalMemory() - runtime.freeMemory()) / 1024;
+        long resident = residentKilobytes();
+        System.out.println((headless ? "Headless" : "GUI") + " startup: first frame " + uptime
+                + " ms after launch, " + heap + " KB heap used, "
+                + (resident < 0 ? "?" : String.valueOf(resident)) + " KB resident");
     }
 
-    public static Frame process(byte[] raw, ArrayList<Frame> stack) {
+    // Resident set size of the process, or -1 where /proc is not available
+    public static long residentKilobytes() {
+        try (BufferedReader in = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    public static Frame process(byte[] raw, List<Frame> stack) {
         Frame frame = new Frame();
-        frame.stack = new ArrayList<>(stack);
 
         // Raw data
         frame.raw = raw;
 
         // Frequency data
-        double[] frequencies = calculateFFT(raw);
-        frame.frequencies = frequencies;
+        frame.frequencies = calculateFFT(raw);
 
-        // Processed data
-        double[] processed = frequencies.clone();
+        return process(frame, stack);
+    }
 
-        processed = applyFilter(processed, new double[]{1});
-        processed = logScale(processed);
-        processed = scaleRange(processed, 0, BASS_UPPER_BOUND, 0.5);
-        for (int i = 0; i < stack.size(); i++) {
-            processed = scaleSurrounding(processed, stack.get(i).peakAverage, 1 + Math.pow(0.5, stack.size() - i), 10);
-        }
-        // Normalize to range [0,1]
-        processed = limit(processed, MAX_VALUE);
-        processed = scaleRange(processed, 0, 1.0, 1.0 / MAX_VALUE);
+    // Processes a frame whose frequency data has already been calculated
+    public static Frame process(Frame frame, List<Frame> stack) {
+        return process(frame, stack, defaultPipeline.get());
+    }
 
-        frame.processed = processed;
+    // Processes a frame through the given pipeline, reusing its processed array when the size matches
+    public static Frame process(Frame frame, List<Frame> stack, SpectrumPipeline pipeline) {
+        frame.stack = stack;
+
+        // Processed data
+        if (frame.processed == null || frame.processed.length != frame.frequencies.length) {
+            frame.processed = new double[frame.frequencies.length];
+        }
+        pipeline.run(frame.frequencies, frame.processed, stack);
 
         return frame;
     }
 
     public static Frame analyze(Frame frame) {
+        return analyze(frame, defaultDetector.get());
+    }
+
+    public static Frame analyze(Frame frame, PeakDetector detector) {
 
         double[] processed = frame.processed;
 
@@ -219,45 +374,7 @@ public class Analyzer {
             }
         }
 
-        double[] peakFiltered = peakFilter(processed, 2);
-        ArrayList<Integer> peakFrequencies = new ArrayList<>();
-        ArrayList<Double> peakIntensities = new ArrayList<>();
-        for (int i = 0; i < peakFiltered.length; i++) {
-            if (peakFiltered[i] > 0) {
-                peakFrequencies.add(i);
-                peakIntensities.add(peakFiltered[i]);
-            }
-        }
-        for (int i = 1; i < peakIntensities.size(); i++) {
-            int j = i;
-            while (j > 0 && peakIntensities.get(j - 1) < peakIntensities.get(j)) {
-                double temp = peakIntensities.get(j);
-                peakIntensities.set(j, peakIntensities.get(j - 1));
-                peakIntensities.set(j - 1, temp);
-                int temp2 = peakFrequencies.get(j);
-                peakFrequencies.set(j, peakFrequencies.get(j - 1));
-                peakFrequencies.set(j - 1, temp2);
-                j--;
-            }
-        }
-        double maxPeakIntensity = 0.0;
-        for (int i = 0; i < peakFrequencies.size(); i++) {
-            if (peakIntensities.get(i) > maxPeakIntensity
-                    && peakFrequencies.get(i) > (double) processed.length * BASS_UPPER_BOUND) {
-                maxPeakIntensity = peakIntensities.get(i);
-            }
-        }
-        ArrayList<Integer> peaksList = new ArrayList<>();
-        for (int i = 0; i < peakFrequencies.size(); i++) {
-            if (peakIntensities.get(i) > 0.7 * maxPeakIntensity
-                    && peakFrequencies.get(i) > (double) processed.length * BASS_UPPER_BOUND) {
-                peaksList.add(peakFrequencies.get(i));
-            }
-        }
-        int[] peaks = new int[peaksList.size()];
-        for (int i = 0; i < peaksList.size(); i++) {
-            peaks[i] = peaksList.get(i);
-        }
+        int[] peaks = detector.detect(processed, BASS_UPPER_BOUND, frame.peaks);
         frame.peaks = peaks;
 
         double peakTotal = 0.0;
@@ -382,194 +499,50 @@ public class Analyzer {
     }
 
     public static double[] calculateFFT(byte[] signal) {
-        final int mNumberOfFFTPoints = signal.length / 2;
-        double mMaxFFTSample = 0.0;
-
-        double temp;
-        Complex[] y;
-        Complex[] complexSignal = new Complex[mNumberOfFFTPoints];
-        double[] absSignal = new double[mNumberOfFFTPoints/2];
-
-        for(int i = 0; i < mNumberOfFFTPoints; i++){
-            temp = (double)((signal[2*i] & 0xFF) | (signal[2*i+1] << 8)) / 32768.0F;
-            complexSignal[i] = new Complex(temp,0.0);
-        }
-
-        y = FFT.fft(complexSignal);
+        double[] absSignal = new double[signal.length / 4];
+        calculateFFT(signal, absSignal);
+        return absSignal;
+    }
 
-        for(int i = 0; i < (mNumberOfFFTPoints/2); i++) {
-            absSignal[i] = Math.sqrt(Math.pow(y[i].re(), 2) + Math.pow(y[i].im(), 2));
-            if(absSignal[i] > mMaxFFTSample) {
-                mMaxFFTSample = absSignal[i];
-            }
+    // Writes the magnitudes of the first half of the spectrum of the 16-bit PCM signal into absSignal
+    public static void calculateFFT(byte[] signal, double[] absSignal) {
+        final int mNumberOfFFTPoints = signal.length / 2;
+        FFTPlan plan = FFT.realPlan(mNumberOfFFTPoints);
+        double[][] scratch = plan.scratch();
+        for (int i = 0; i < mNumberOfFFTPoints; i++) {
+            scratch[i & 1][i >> 1] = (double)((signal[2*i] & 0xFF) | (signal[2*i+1] << 8)) / 32768.0F;
         }
+        FFT.realMagnitudes(plan, mNumberOfFFTPoints, absSignal);
+    }
 
-        return absSignal;
+    // Writes the magnitudes of the first half of the spectrum of the remaining samples into absSignal, reading
+    // them in place so a window of a mapped file is never copied
+    public static void calculateFFT(ShortBuffer signal, double[] absSignal) {
+        final int offset = signal.position();
+        final int mNumberOfFFTPoints = signal.remaining();
+        FFTPlan plan = FFT.realPlan(mNumberOfFFTPoints);
+        double[][] scratch = plan.scratch();
+        for (int i = 0; i < mNumberOfFFTPoints; i++) {
+            scratch[i & 1][i >> 1] = (double) signal.get(offset + i) / 32768.0F;
+        }
+        FFT.realMagnitudes(plan, mNumberOfFFTPoints, absSignal);
+    }
 
+    // Opens a window showing the frames passed to updateDisplay, returning its id
+    public static int createDisplay(String title, Display.Style style) {
+        return Display.create(title, style);
     }
 
     public static int createDisplay(String title) {
-        idCount++;
-        openCount++;
-        final int id = idCount;
-        JFrame mainFrame = new JFrame(title == null ? "Audio Analyzer " + id : title);
-        mainFrame.setSize(width, height + 22);
-        mainFrame.setLayout(new GridLayout(3, 1));
-        JPanel controlPanel = new JPanel();
-        controlPanel.setLayout(new FlowLayout());
-
-        mainFrame.add(controlPanel);
-        mainFrame.setVisible(true);
-        Canvas canvas = new Canvas();
-        canvas.setBackground(Color.BLACK);
-        canvas.setSize(width, height);
-        controlPanel.add(canvas);
-
-        mainFrame.addComponentListener(new ComponentListener() {
-            @Override
-            public void componentResized(ComponentEvent e) {
-                System.out.println(canvas.getWidth());
-                System.out.println(canvas.getHeight());
-                System.out.println(mainFrame.getWidth());
-                System.out.println(mainFrame.getHeight());
-                width = mainFrame.getWidth();
-                height = mainFrame.getHeight();
-                canvas.setSize(mainFrame.getWidth(), mainFrame.getHeight());
-                canvas.repaint();
-            }
-            @Override
-            public void componentMoved(ComponentEvent e) {
-            }
-            @Override
-            public void componentShown(ComponentEvent e) {
-            }
-            @Override
-            public void componentHidden(ComponentEvent e) {
-            }
-        });
-
-        //mainFrame.pack();
-
-        Graphics2D g = (Graphics2D) canvas.getGraphics();
-        canvasMap.put(id, canvas);
-
-        // Create display thread
-        final Thread display = new Thread(new Runnable() {
-            public void run() {
-                boolean killed = false;
-                while (!killed) {
-                    if (frameMap.containsKey(id)) {
-                        displayData(id, frameMap.get(id));
-                    }
-                    try {
-                        Thread.sleep(1000 / DISPLAY_FPS);
-                    } catch (InterruptedException e) {
-                        killed = true;
-                        openCount--;
-                        if (openCount == 0) {
-                            System.exit(0);
-                        }
-                    }
-                }
-            }
-        });
-        display.start();
-
-        mainFrame.addWindowListener(new WindowAdapter() {
-            public void windowClosing(WindowEvent windowEvent){
-                display.interrupt(); // Use to kill thread
-            }
-        });
-        KeyListener exit = new KeyListener() {
-            @Override
-            public void keyTyped(KeyEvent e) {
-                if (e.getExtendedKeyCode() == 27) {
-                    System.exit(0);
-                }
-            }
-            @Override
-            public void keyPressed(KeyEvent e) {
-            }
-            @Override
-            public void keyReleased(KeyEvent e) {
-            }
-        };
-        mainFrame.addKeyListener(exit);
-        canvas.addKeyListener(exit);
-
-        return id;
+        return createDisplay(title, Display.Style.SPECTRUM);
     }
 
     public static int createDisplay() {
         return createDisplay(null);
     }
 
-    public static void displayData(int id, Frame frame) {
-        Graphics2D g = (Graphics2D) canvasMap.get(id).getGraphics();
-        g.setStroke(new BasicStroke(2));
-        g.clearRect(0, 0, width, height);
-        double xScale = (double) width / frame.processed.length;
-        double yScale = height - BASELINE;
-        int lastX = 0;
-        int lastY = height - BASELINE;
-        //String style = "rect";
-        String style = "line";
-
-        //g.setColor(Color.getHSBColor(0.0f, 1.0f, 0.2f));
-        //g.fillRect(0, 0, (int) (data.length * xScale * BASS_UPPER_BOUND), height);
-
-        if (frame.maxBassIntensityDifference > 0.05) {
-            float brightness = (float) frame.maxBassIntensityDifference;
-            g.setColor(Color.getHSBColor(0.0f, frame.maxBassIntensityDifference > 0.4 ? 1.0f : 0.0f, brightness));
-            g.fillRect(0, 0, width, height);
-        }
-        g.setColor(Color.getHSBColor(0.0f, 0.0f, 1.0f));
-        g.drawRect(0, (height - BASELINE), width, 1);
-
-        g.setColor(Color.getHSBColor(0.0f, 0.0f, 0.5f));
-        g.drawRect(0, (height - BASELINE) - (int) ((frame.maxIntensity + 0.01) * yScale),
-                (int) (frame.processed.length * xScale), 3);
-
-        g.setColor(Color.getHSBColor(0.0f, 1.0f, 0.5f));
-        g.drawRect(0, (height - BASELINE) - (int) ((frame.maxBassIntensity + 0.01) * yScale),
-                (int) (frame.processed.length * BASS_UPPER_BOUND * xScale), 3);
-
-        g.setColor(Color.getHSBColor(0.0f, 0.0f, 0.5f));
-        g.fillRect(0, (height - BASELINE) - (int) ((frame.averageIntensity + 0.01) * yScale),
-                (int) (frame.processed.length * xScale), 3);
-
-        g.setColor(Color.getHSBColor(0.0f, 1.0f, 0.5f));
-        g.fillRect(0, (height - BASELINE) - (int) ((frame.averageBassIntensity + 0.01) * yScale),
-                (int) (frame.processed.length * BASS_UPPER_BOUND * xScale), 3);
-
-        for (int p = 0; p < frame.peaks.length; p++) {
-            int i = frame.peaks[p];
-            g.setColor(Color.getHSBColor(((float) i * COLOR_SPECTRUMS / frame.processed.length) % 1, 1.0f, 1.0f));
-            g.fillRect((int) (i * xScale), (height - BASELINE) - (int) (frame.processed[i] * yScale),
-                    (int) xScale, /*BASELINE +*/ (int) (frame.processed[i] * yScale));
-        }
-
-        g.setColor(Color.getHSBColor(((float) frame.peakAverage * COLOR_SPECTRUMS / frame.processed.length) % 1, 1.0f, 1.0f));
-        g.drawRect((int) (frame.peakAverage * xScale - 1), 0, 3, height);
-        //g.fillRect(0, 0, width, height);
-
-        for (int i = 0; i < frame.processed.length; i++) {
-            g.setColor(Color.getHSBColor(((float) i * COLOR_SPECTRUMS / frame.processed.length) % 1, 1.0f, 1.0f));
-            int x = (int) (i * xScale);
-            int y = (int) ((height - BASELINE) - Math.max(1, (int) (frame.processed[i] * yScale)));
-            if (style == "line") {
-                g.drawLine(lastX, lastY, x, y);
-            }
-            else if (style == "rect") {
-                g.fillRect(x, y, (int) xScale, (height - BASELINE) - y);
-            }
-            lastX = x;
-            lastY = y;
-        }
-    }
-
     public static void updateDisplay(int id, Frame frame) {
-        frameMap.put(id, frame);
+        Display.update(id, frame);
     }
 
     public static void printData(double[] data) {
@@ -607,7 +580,56 @@ public class Analyzer {
         public double maxBassIntensityGain;
         public int[] peaks;
         public int peakAverage;
-        public ArrayList<Frame> stack;
+        public List<Frame> stack; // History before this frame, only valid until the frame is added to it
+
+        // Clears the values of a recycled frame, keeping its arrays for reuse
+        void clear() {
+            averageIntensity = 0;
+            averageBassIntensity = 0;
+            maxIntensity = 0;
+            maxFrequency = 0;
+            maxBassIntensity = 0;
+            averageIntensityDifference = 0;
+            averageBassIntensityDifference = 0;
+            maxIntensityDifference = 0;
+            maxBassIntensityDifference = 0;
+            averageIntensityGain = 0;
+            averageBassIntensityGain = 0;
+            maxIntensityGain = 0;
+            maxBassIntensityGain = 0;
+            peakAverage = 0;
+            stack = null;
+        }
+
+        // Copies the values, processed data and peaks of another frame, reusing this frame's arrays when the
+        // sizes match. The raw and frequency data and the history are not copied.
+        void copyFrom(Frame other) {
+            if (processed == null || processed.length != other.processed.length) {
+                processed = new double[other.processed.length];
+            }
+            System.arraycopy(other.processed, 0, processed, 0, processed.length);
+            if (peaks == null || peaks.length != other.peaks.length) {
+                peaks = new int[other.peaks.length];
+            }
+            System.arraycopy(other.peaks, 0, peaks, 0, peaks.length);
+            averageIntensity = other.averageIntensity;
+            averageBassIntensity = other.averageBassIntensity;
+            maxIntensity = other.maxIntensity;
+            maxFrequency = other.maxFrequency;
+            maxBassIntensity = other.maxBassIntensity;
+            averageIntensityDifference = other.averageIntensityDifference;
+            averageBassIntensityDifference = other.averageBassIntensityDifference;
+            maxIntensityDifference = other.maxIntensityDifference;
+            maxBassIntensityDifference = other.maxBassIntensityDifference;
+            averageIntensityGain = other.averageIntensityGain;
+            averageBassIntensityGain = other.averageBassIntensityGain;
+            maxIntensityGain = other.maxIntensityGain;
+            maxBassIntensityGain = other.maxBassIntensityGain;
+            peakAverage = other.peakAverage;
+            raw = null;
+            frequencies = null;
+            stack = null;
+        }
     }
 
     static class FrameEvent {
@@ -653,24 +675,53 @@ public class Analyzer {
             return type;
         }
 
+        // Takes on every change of another event, keeping the changes of this one the other does not make
+        void merge(FrameEvent other) {
+            if ((other.type & HUE_CHANGE) == HUE_CHANGE) {
+                hue = other.hue;
+            }
+            if ((other.type & SATURATION_CHANGE) == SATURATION_CHANGE) {
+                saturation = other.saturation;
+            }
+            if ((other.type & BRIGHTNESS_CHANGE) == BRIGHTNESS_CHANGE) {
+                brightness = other.brightness;
+            }
+            type |= other.type;
+        }
+
+        // Replaces the whole event, without checking the values
+        void set(int type, int hue, int saturation, int brightness) {
+            this.type = type;
+            this.hue = hue;
+            this.saturation = saturation;
+            this.brightness = brightness;
+        }
+
+        void clear() {
+            type = 0;
+            hue = 0;
+            saturation = 0;
+            brightness = 0;
+        }
+
+        // The values are only meaningful when the type says they changed
+        int getHue() {
+            return hue;
+        }
+
+        int getSaturation() {
+            return saturation;
+        }
+
+        int getBrightness() {
+            return brightness;
+        }
+
         public byte[] getBytes() {
-            int bitCount = TYPE_LOAD_SIZE;
             boolean hueChange = (type & HUE_CHANGE) == HUE_CHANGE;
             boolean saturationChange = (type & SATURATION_CHANGE) == SATURATION_CHANGE;
             boolean brightnessChange = (type & BRIGHTNESS_CHANGE) == BRIGHTNESS_CHANGE;
-            if (hueChange) {
-                bitCount += HUE_LOAD_SIZE;
-            }
-            if (saturationChange) {
-                bitCount += SATURATION_LOAD_SIZE;
-            }
-            if (brightnessChange) {
-                bitCount += BRIGHTNESS_LOAD_SIZE;
-            }
-            int byteCount = bitCount / 8;
-            if (bitCount % 8 != 0) {
-                byteCount++;
-            }
+            int byteCount = length(type);
             //System.out.println("Event requires " + bitCount + " bits -> " + byteCount + " bytes");
 
             byte[] bytes = new byte[byteCount];
@@ -690,6 +741,21 @@ public class Analyzer {
             return bytes;
         }
 
+        // Bytes in a packet of the given type, which is in the low bits of its first byte
+        public static int length(int type) {
+            int bitCount = TYPE_LOAD_SIZE;
+            if ((type & HUE_CHANGE) == HUE_CHANGE) {
+                bitCount += HUE_LOAD_SIZE;
+            }
+            if ((type & SATURATION_CHANGE) == SATURATION_CHANGE) {
+                bitCount += SATURATION_LOAD_SIZE;
+            }
+            if ((type & BRIGHTNESS_CHANGE) == BRIGHTNESS_CHANGE) {
+                bitCount += BRIGHTNESS_LOAD_SIZE;
+            }
+            return (bitCount + 7) / 8;
+        }
+
         public static int[] extract(byte[] bytes) {
             int type = -1;
             int hue = -1;
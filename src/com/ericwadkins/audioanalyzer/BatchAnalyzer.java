@@ -0,0 +1,355 @@
+package com.ericwadkins.audioanalyzer;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Analyzes a directory of audio files in parallel on a work-stealing pool, writing the same per-file output as
+ * FileAnalyzer.
+ *
+ * Long files are also split into chunks that run in parallel. Each chunk first analyzes a warm-up of the reads
+ * before it without writing anything, so its history fills up. Frames depend on the whole past through the
+ * history, so a chunk's output is only kept if its state after the warm-up is exactly the state the previous
+ * chunk ended in; otherwise the chunk is analyzed again, continuing from the previous chunk. The output is
+ * therefore always identical to a single-threaded run, and the re-runs are rare because the history quickly
+ * forgets how it started.
+ *
+ * Each file forks its own chunks and appends them to its output in order as they finish, so output reaches disk
+ * while the batch runs. Chunks write to temporary files in the output directory rather than memory, so a batch
+ * needs little more memory than its threads do, however much it writes.
+ */
+public class BatchAnalyzer {
+
+    public static final int CHUNK_READS = 4096; // Reads per chunk, 8.5 minutes at 8 updates per second
+    public static final int WARMUP_FRAMES = 4 * Analyzer.STACK_SIZE; // Frames analyzed before a chunk's output
+
+    private static final String[] EXTENSIONS = {".wav", ".aif", ".aiff", ".aifc", ".au", ".snd"};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: BatchAnalyzer <input directory> [output directory] [threads] [chunk reads]");
+            return;
+        }
+        File input = new File(args[0]);
+        File output = new File(args.length > 1 ? args[1] : args[0]);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int chunkReads = args.length > 3 ? Integer.parseInt(args[3]) : CHUNK_READS;
+
+        File[] files = input.listFiles((dir, name) -> {
+            String lower = name.toLowerCase(Locale.ROOT);
+            for (String extension : EXTENSIONS) {
+                if (lower.endsWith(extension)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+        if (files == null) {
+            throw new IllegalArgumentException("Not a directory: " + input);
+        }
+        Arrays.sort(files);
+        if (!output.isDirectory() && !output.mkdirs()) {
+            throw new IOException("Cannot create " + output);
+        }
+
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            Result result = analyze(Arrays.asList(files), output, chunkReads, pool);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println("Analyzed " + result.frames + " frames of " + files.length + " files in "
+                    + String.format(Locale.ROOT, "%.3f", seconds) + " s on " + threads + " threads ("
+                    + result.chunks + " chunks, " + result.reruns + " re-run)");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static class Result {
+        public long frames;
+        public int chunks;
+        public int reruns;
+    }
+
+    // Analyzes every file into <output>/<name>.csv and <output>/<name>.events
+    public static Result analyze(List<File> files, File output, int chunkReads, ForkJoinPool pool)
+            throws IOException, UnsupportedAudioFileException {
+        List<FileJob> jobs = new ArrayList<>();
+        for (File file : files) {
+            jobs.add(new FileJob(file, output, chunkReads));
+        }
+
+        // Each file forks its chunks and stitches them together in order as they finish
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (FileJob job : jobs) {
+            tasks.add(ForkJoinTask.adapt(job));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+
+        Result result = new Result();
+        for (FileJob job : jobs) {
+            if (job.error != null) {
+                throw new IOException("Failed to analyze " + job.file, job.error);
+            }
+            result.frames += job.frames;
+            result.chunks += job.chunks.size();
+            result.reruns += job.reruns;
+        }
+        return result;
+    }
+
+    // The chunks of one file, stitched together in order as they finish. Runs on the pool, which the chunks are
+    // forked onto.
+    static class FileJob implements Runnable {
+        final File file;
+        final File output;
+        final File features;
+        final File events;
+        final List<Chunk> chunks = new ArrayList<>();
+        long frames;
+        int reruns;
+        Exception error;
+
+        FileJob(File file, File output, int chunkReads) throws IOException, UnsupportedAudioFileException {
+            this.file = file;
+            this.output = output;
+            this.features = new File(output, file.getName() + ".csv");
+            this.events = new File(output, file.getName() + ".events");
+
+            try (AudioInputStream stream = FileAnalyzer.openPcm(file)) {
+                FrameAnalyzer analyzer = new FrameAnalyzer((int) stream.getFormat().getSampleRate());
+                long samples = stream.getFrameLength();
+                long reads = samples == AudioSystem.NOT_SPECIFIED ? Long.MAX_VALUE
+                        : (samples + analyzer.getReadSize() - 1) / analyzer.getReadSize();
+                long warmup = FileAnalyzer.firstFrameRead(analyzer) + WARMUP_FRAMES;
+
+                // The sliding DFT carries rounding from every sample before it, so it cannot be split exactly
+                if (analyzer.isIncremental() || reads == Long.MAX_VALUE) {
+                    chunks.add(new Chunk(this, 0, 0, reads));
+                }
+                else {
+                    for (long start = 0; start < reads || start == 0; start += chunkReads) {
+                        chunks.add(new Chunk(this, Math.max(0, start - warmup), start,
+                                Math.min(reads, start + chunkReads)));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                tasks.add(ForkJoinTask.adapt(chunk).fork());
+            }
+            int stitched = 0;
+            try (OutputStream featureOut = new BufferedOutputStream(new FileOutputStream(features));
+                 OutputStream eventOut = new BufferedOutputStream(new FileOutputStream(events))) {
+                featureOut.write((FileAnalyzer.FEATURE_HEADER + System.lineSeparator())
+                        .getBytes(StandardCharsets.UTF_8));
+                Chunk previous = null;
+                for (; stitched < chunks.size(); stitched++) {
+                    Chunk chunk = chunks.get(stitched);
+                    tasks.get(stitched).join();
+                    if (chunk.error != null) {
+                        throw chunk.error;
+                    }
+                    if (previous != null && !chunk.continues(previous)) {
+                        chunk.rerun(previous);
+                        reruns++;
+                    }
+                    Files.copy(chunk.features.toPath(), featureOut);
+                    Files.copy(chunk.events.toPath(), eventOut);
+                    frames += chunk.frames;
+                    chunk.release();
+                    if (previous != null) {
+                        previous.forget();
+                    }
+                    previous = chunk;
+                }
+                if (previous != null) {
+                    previous.forget();
+                }
+            } catch (Exception e) {
+                error = e;
+            } finally {
+                // Chunks left after a failure still have to finish before their output can be removed
+                for (; stitched < chunks.size(); stitched++) {
+                    tasks.get(stitched).join();
+                    chunks.get(stitched).release();
+                    chunks.get(stitched).forget();
+                }
+            }
+        }
+    }
+
+    // A range of reads of one file, analyzed after a warm-up of the reads before it into temporary files next to
+    // the file's output
+    static class Chunk implements Runnable {
+        final FileJob job;
+        final long first;
+        final long start;
+        final long end;
+
+        FrameAnalyzer analyzer;
+        EventGenerator generator;
+        State initial;
+        File features;
+        File events;
+        long frames;
+        Exception error;
+
+        Chunk(FileJob job, long first, long start, long end) {
+            this.job = job;
+            this.first = first;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            try (MappedWavReader reader = FileAnalyzer.openMapped(job.file)) {
+                if (reader != null) {
+                    // Mapped files start the warm-up at the chunk without reading up to it
+                    analyzer = new FrameAnalyzer((int) reader.getSampleRate());
+                    generator = new EventGenerator();
+                    FileAnalyzer.run(reader, analyzer, generator, first, start, start, null, null);
+                    initial = new State(analyzer, generator);
+                    analyze(reader);
+                    return;
+                }
+            } catch (Exception e) {
+                error = e;
+                return;
+            }
+            try (AudioInputStream stream = FileAnalyzer.openPcm(job.file)) {
+                analyzer = new FrameAnalyzer((int) stream.getFormat().getSampleRate());
+                generator = new EventGenerator();
+                if (!FileAnalyzer.skipFully(stream, first * analyzer.getReadSize() * stream.getFormat().getFrameSize())) {
+                    throw new EOFException("File ended before chunk at read " + first);
+                }
+                FileAnalyzer.run(stream, analyzer, generator, first, start, start, null, null);
+                initial = new State(analyzer, generator);
+                analyze(stream);
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        // Analyzes the chunk again, continuing from where the previous chunk ended
+        void rerun(Chunk previous) throws IOException, UnsupportedAudioFileException {
+            analyzer = previous.analyzer;
+            generator = previous.generator;
+            try (MappedWavReader reader = FileAnalyzer.openMapped(job.file)) {
+                if (reader != null) {
+                    analyze(reader);
+                    return;
+                }
+            }
+            try (AudioInputStream stream = FileAnalyzer.openPcm(job.file)) {
+                if (!FileAnalyzer.skipFully(stream, start * analyzer.getReadSize() * stream.getFormat().getFrameSize())) {
+                    throw new EOFException("File ended before chunk at read " + start);
+                }
+                analyze(stream);
+            }
+        }
+
+        private void analyze(AudioInputStream stream) throws IOException {
+            openOutput();
+            try (PrintWriter featureWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(features), StandardCharsets.UTF_8)));
+                 DataOutputStream eventWriter = new DataOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(events)))) {
+                frames = FileAnalyzer.run(stream, analyzer, generator, start, end, start, featureWriter, eventWriter);
+            }
+        }
+
+        private void analyze(MappedWavReader reader) throws IOException {
+            openOutput();
+            try (PrintWriter featureWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(features), StandardCharsets.UTF_8)));
+                 DataOutputStream eventWriter = new DataOutputStream(new BufferedOutputStream(
+                         new FileOutputStream(events)))) {
+                frames = FileAnalyzer.run(reader, analyzer, generator, start, end, start, featureWriter, eventWriter);
+            }
+        }
+
+        // Creates the temporary files on the first run, a re-run overwrites them
+        private void openOutput() throws IOException {
+            if (features == null) {
+                features = File.createTempFile(job.features.getName() + ".", ".part", job.output);
+                events = File.createTempFile(job.events.getName() + ".", ".part", job.output);
+            }
+        }
+
+        // Whether this chunk's output is what a single run would have produced after the previous chunk
+        boolean continues(Chunk previous) {
+            return initial != null && initial.equals(new State(previous.analyzer, previous.generator));
+        }
+
+        // Removes the temporary output, keeping the analyzer for the next chunk
+        void release() {
+            if (features != null && !features.delete()) {
+                features.deleteOnExit();
+            }
+            if (events != null && !events.delete()) {
+                events.deleteOnExit();
+            }
+            features = null;
+            events = null;
+        }
+
+        // Drops the analyzer once the next chunk no longer needs it
+        void forget() {
+            analyzer = null;
+            generator = null;
+            initial = null;
+        }
+    }
+
+    // Everything the next frame depends on besides its own samples: the peak averages of the history, the values
+    // the last frame is compared against and the last event values
+    static class State {
+        private final int[] peakAverages;
+        private final double[] last;
+        private final EventGenerator generator;
+
+        State(FrameAnalyzer analyzer, EventGenerator generator) {
+            FrameHistory history = analyzer.getHistory();
+            peakAverages = new int[history.size()];
+            for (int i = 0; i < history.size(); i++) {
+                peakAverages[i] = history.get(i).peakAverage;
+            }
+            Analyzer.Frame frame = history.last();
+            last = frame == null ? new double[0] : new double[] {frame.averageIntensity,
+                    frame.averageBassIntensity, frame.maxIntensity, frame.maxBassIntensity};
+            this.generator = new EventGenerator(generator);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof State)) {
+                return false;
+            }
+            State that = (State) o;
+            return Arrays.equals(peakAverages, that.peakAverages) && Arrays.equals(last, that.last)
+                    && generator.sameState(that.generator);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(peakAverages) * 31 + Arrays.hashCode(last);
+        }
+    }
+
+}
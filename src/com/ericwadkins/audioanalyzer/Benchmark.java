@@ -0,0 +1,344 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Microbenchmarks of the hot path: the transforms, processing, analysis, rendering, event encoding and a whole
+ * frame from synthetic PCM. Every benchmark is warmed up and then timed over several fixed-length iterations,
+ * reporting the mean time per operation with its standard deviation and the bytes allocated per operation.
+ *
+ * Results can be written to a file and compared against a baseline written the same way, such as
+ * bench/baseline.txt. Run with a fixed heap and nothing else running, e.g.
+ *
+ *     java -Xms512m -Xmx512m com.ericwadkins.audioanalyzer.Benchmark [results] [baseline] [name filter]
+ */
+public class Benchmark {
+
+    public static final int WARMUP_ITERATIONS = 5;
+    public static final int ITERATIONS = 10;
+    public static final long ITERATION_NANOS = 200_000_000L;
+
+    // Transform lengths: powers of two, 6000 = 2^4 * 3 * 5^3 for the mixed radix path, and 44.1 kHz /
+    // UPDATES_PER_SECOND, 5512 = 2^3 * 13 * 53, which falls back to Bluestein
+    private static final int[] FFT_SIZES = {256, 1024, 4096, 6000, 5512};
+    private static final int[] CONVOLVE_SIZES = {256, 1024};
+    // Sample rates of a whole frame, giving blocks of 1024 and 5512 samples
+    private static final int[] SAMPLE_RATES = {Analyzer.SAMPLES_PER_SECOND, 44100};
+    // Event types: hue only and all three values
+    private static final int[] EVENT_TYPES = {1, 7};
+    private static final int BATCH_SIZE = 64;
+
+    // Results are consumed here so the JIT cannot remove the work
+    private static volatile double sink;
+
+    private interface Operation {
+        double run();
+    }
+
+    private static class Result {
+        final String name;
+        final int param;
+        final double nanos;
+        final double error;
+        final double bytes;
+
+        Result(String name, int param, double nanos, double error, double bytes) {
+            this.name = name;
+            this.param = param;
+            this.nanos = nanos;
+            this.error = error;
+            this.bytes = bytes;
+        }
+
+        String key() {
+            return name + " " + param;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        File output = args.length > 0 ? new File(args[0]) : null;
+        File baseline = args.length > 1 ? new File(args[1]) : null;
+        String filter = args.length > 2 ? args[2] : "";
+
+        Map<String, Result> previous = baseline != null ? read(baseline) : Collections.emptyMap();
+        List<Result> results = new ArrayList<>();
+        System.out.println(String.format(Locale.ROOT, "%-16s %6s %14s %12s %12s %9s",
+                "benchmark", "size", "ns/op", "error", "B/op", "baseline"));
+
+        for (int n : FFT_SIZES) {
+            double[] re = signal(n, 1);
+            double[] im = signal(n, 2);
+            double[] workRe = new double[n];
+            double[] workIm = new double[n];
+            results.add(run(filter, previous, "fft", n, () -> {
+                System.arraycopy(re, 0, workRe, 0, n);
+                System.arraycopy(im, 0, workIm, 0, n);
+                FFT.fft(workRe, workIm);
+                return workRe[1];
+            }));
+            results.add(run(filter, previous, "ifft", n, () -> {
+                System.arraycopy(re, 0, workRe, 0, n);
+                System.arraycopy(im, 0, workIm, 0, n);
+                FFT.ifft(workRe, workIm);
+                return workRe[1];
+            }));
+        }
+
+        for (int n : CONVOLVE_SIZES) {
+            Complex[] x = complex(n, 3);
+            Complex[] y = complex(n, 4);
+            results.add(run(filter, previous, "convolve", n, () -> FFT.convolve(x, y)[1].re()));
+        }
+
+        for (int n : FFT_SIZES) {
+            byte[] raw = pcm(n, 5);
+            double[] spectrum = new double[n / 2];
+            results.add(run(filter, previous, "calculateFFT", n, () -> {
+                Analyzer.calculateFFT(raw, spectrum);
+                return spectrum[1];
+            }));
+        }
+
+        for (int rate : SAMPLE_RATES) {
+            int block = rate / Analyzer.UPDATES_PER_SECOND;
+            int bins = block / 2;
+
+            // A full history of processed frames to process and analyze against
+            FrameHistory history = new FrameHistory(Analyzer.STACK_SIZE);
+            SpectrumPipeline pipeline = SpectrumPipeline.createDefault();
+            PeakDetector detector = new PeakDetector(Analyzer.PEAK_WIDTH);
+            for (int i = 0; i < Analyzer.STACK_SIZE; i++) {
+                Analyzer.Frame frame = history.obtain();
+                frame.frequencies = Analyzer.calculateFFT(pcm(block, 10 + i));
+                Analyzer.process(frame, history, pipeline);
+                Analyzer.analyze(frame, detector);
+                history.push(frame);
+            }
+            Analyzer.Frame frame = new Analyzer.Frame();
+            frame.frequencies = Analyzer.calculateFFT(pcm(block, 6));
+            Analyzer.process(frame, history, pipeline);
+            Analyzer.analyze(frame, detector);
+
+            results.add(run(filter, previous, "process", bins, () -> {
+                Analyzer.process(frame, history, pipeline);
+                return frame.processed[1];
+            }));
+            results.add(run(filter, previous, "analyze", bins, () -> {
+                frame.stack = history;
+                Analyzer.analyze(frame, detector);
+                return frame.peakAverage;
+            }));
+            double[] processed = frame.processed.clone();
+            results.add(run(filter, previous, "peakFilter", bins,
+                    () -> Analyzer.peakFilter(processed, Analyzer.PEAK_WIDTH)[1]));
+
+            // Drawing a frame into an image the size of the default window
+            ImageTarget target = new ImageTarget(Analyzer.width, Analyzer.height);
+            SpectrumRenderer renderer = new SpectrumRenderer();
+            results.add(run(filter, previous, "render", bins, () -> {
+                renderer.render(target, frame);
+                return target.getImage().getRGB(bins % Analyzer.width, Analyzer.height / 2);
+            }));
+            // Adding a frame to a ten second spectrogram and drawing it
+            SpectrogramRenderer spectrogram = new SpectrogramRenderer(10 * Analyzer.UPDATES_PER_SECOND);
+            results.add(run(filter, previous, "spectrogram", bins, () -> {
+                spectrogram.update(frame);
+                spectrogram.render(target, frame);
+                return target.getImage().getRGB(bins % Analyzer.width, Analyzer.height / 2);
+            }));
+        }
+
+        for (int type : EVENT_TYPES) {
+            Analyzer.FrameEvent event = new Analyzer.FrameEvent();
+            event.changeHue(217);
+            if ((type & 2) != 0) {
+                event.changeSaturation(63);
+            }
+            if ((type & 4) != 0) {
+                event.changeBrightness(88);
+            }
+            byte[] bytes = event.getBytes();
+            results.add(run(filter, previous, "getBytes", type, () -> event.getBytes()[0]));
+            results.add(run(filter, previous, "extract", type, () -> Analyzer.FrameEvent.extract(bytes)[1]));
+
+            ByteBuffer buffer = ByteBuffer.allocate(EventCodec.MAX_LENGTH);
+            EventCodec.encode(event, buffer);
+            Analyzer.FrameEvent decoded = new Analyzer.FrameEvent();
+            results.add(run(filter, previous, "encode", type, () -> {
+                buffer.clear();
+                return EventCodec.encode(event, buffer);
+            }));
+            results.add(run(filter, previous, "decode", type, () -> {
+                buffer.clear();
+                EventCodec.decode(buffer, decoded);
+                return decoded.getHue();
+            }));
+        }
+
+        // Color changes encoded back to back into one buffer
+        Analyzer.FrameEvent[] batch = new Analyzer.FrameEvent[BATCH_SIZE];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new Analyzer.FrameEvent();
+            batch[i].changeHue(i * 7 % 360);
+            if (i % 2 == 0) {
+                batch[i].changeBrightness(i % 101);
+            }
+        }
+        ByteBuffer packets = ByteBuffer.allocate(batch.length * EventCodec.MAX_LENGTH);
+        results.add(run(filter, previous, "encodeBatch", batch.length, () -> {
+            packets.clear();
+            return EventCodec.encode(batch, 0, batch.length, packets);
+        }));
+
+        for (int rate : SAMPLE_RATES) {
+            // Cycle through a second of distinct blocks so the history keeps changing
+            FrameAnalyzer analyzer = new FrameAnalyzer(rate);
+            EventGenerator generator = new EventGenerator();
+            byte[][] blocks = new byte[Analyzer.UPDATES_PER_SECOND][];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = pcm(analyzer.getReadSize(), 20 + i);
+            }
+            int[] next = {0};
+            results.add(run(filter, previous, "frame", rate, () -> {
+                byte[] raw = blocks[next[0]++ % blocks.length];
+                Analyzer.Frame f = analyzer.next(raw, raw.length);
+                return f == null ? 0 : generator.next(f).getType() + f.peakAverage;
+            }));
+        }
+
+        results.removeIf(Objects::isNull);
+        if (output != null) {
+            write(output, results);
+        }
+    }
+
+    // Warms up and times one benchmark, printing and returning its result, or returns null if filtered out
+    private static Result run(String filter, Map<String, Result> baseline, String name, int param,
+                              Operation operation) {
+        if (!name.contains(filter)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iterate(operation);
+        }
+
+        double[] nanos = new double[ITERATIONS];
+        long operations = 0;
+        long allocated = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            long before = threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            long count = iterate(operation);
+            nanos[i] = (double) (System.nanoTime() - start) / count;
+            allocated += threads.getThreadAllocatedBytes(thread) - before;
+            operations += count;
+        }
+
+        double mean = 0;
+        for (double value : nanos) {
+            mean += value / ITERATIONS;
+        }
+        double variance = 0;
+        for (double value : nanos) {
+            variance += (value - mean) * (value - mean) / (ITERATIONS - 1);
+        }
+        Result result = new Result(name, param, mean, Math.sqrt(variance), (double) allocated / operations);
+
+        Result old = baseline.get(result.key());
+        String change = old == null ? "" : String.format(Locale.ROOT, "%+8.1f%%", 100 * (mean / old.nanos - 1));
+        System.out.println(String.format(Locale.ROOT, "%-16s %6d %14.1f %12.1f %12.1f %9s",
+                name, param, mean, result.error, result.bytes, change));
+        return result;
+    }
+
+    // Runs the operation for one iteration, in batches so the clock is not read every call, returning the count
+    private static long iterate(Operation operation) {
+        long start = System.nanoTime();
+        long count = 0;
+        int batch = 1;
+        double result = 0;
+        while (System.nanoTime() - start < ITERATION_NANOS) {
+            for (int i = 0; i < batch; i++) {
+                result += operation.run();
+            }
+            count += batch;
+            if (batch < 1024) {
+                batch *= 2;
+            }
+        }
+        sink = result;
+        return count;
+    }
+
+    private static void write(File file, List<Result> results) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            out.println("# benchmark size ns/op error B/op");
+            for (Result result : results) {
+                out.println(String.format(Locale.ROOT, "%s %d %.1f %.1f %.1f",
+                        result.name, result.param, result.nanos, result.error, result.bytes));
+            }
+        }
+    }
+
+    private static Map<String, Result> read(File file) throws IOException {
+        Map<String, Result> results = new HashMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.trim().split("\\s+");
+                Result result = new Result(fields[0], Integer.parseInt(fields[1]), Double.parseDouble(fields[2]),
+                        Double.parseDouble(fields[3]), Double.parseDouble(fields[4]));
+                results.put(result.key(), result);
+            }
+        }
+        return results;
+    }
+
+    // Uniform noise in [-1, 1)
+    private static double[] signal(int n, long seed) {
+        Random random = new Random(seed);
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = 2 * random.nextDouble() - 1;
+        }
+        return x;
+    }
+
+    private static Complex[] complex(int n, long seed) {
+        double[] re = signal(n, seed);
+        Complex[] x = new Complex[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = new Complex(re[i], 0);
+        }
+        return x;
+    }
+
+    // 16-bit little endian PCM of a few tones over noise, different for every seed
+    private static byte[] pcm(int samples, long seed) {
+        Random random = new Random(seed);
+        double[] tones = {40 + random.nextInt(200), 300 + random.nextInt(1000), 1500 + random.nextInt(2000)};
+        byte[] raw = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / Analyzer.SAMPLES_PER_SECOND;
+            double value = 0.1 * (2 * random.nextDouble() - 1);
+            for (int k = 0; k < tones.length; k++) {
+                value += 0.3 / (k + 1) * Math.sin(2 * Math.PI * tones[k] * t);
+            }
+            int sample = (int) (value * 16384);
+            raw[2 * i] = (byte) sample;
+            raw[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return raw;
+    }
+
+}
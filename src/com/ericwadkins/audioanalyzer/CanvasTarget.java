@@ -0,0 +1,50 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.awt.*;
+import java.awt.image.BufferStrategy;
+
+/**
+ * Renders onto a canvas through a double-buffered BufferStrategy. Each frame is drawn into the back buffer, which
+ * is accelerated video memory (a VolatileImage) where the platform supports it, and then shown in one step, so the
+ * display never shows a partly drawn frame.
+ */
+public class CanvasTarget implements RenderTarget {
+
+    private final Canvas canvas;
+    private BufferStrategy strategy;
+
+    public CanvasTarget(Canvas canvas) {
+        this.canvas = canvas;
+        canvas.setIgnoreRepaint(true);
+    }
+
+    @Override
+    public int getWidth() {
+        return canvas.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return canvas.getHeight();
+    }
+
+    @Override
+    public Graphics2D begin() {
+        // The strategy can only be created once the canvas is on screen
+        if (strategy == null) {
+            canvas.createBufferStrategy(2);
+            strategy = canvas.getBufferStrategy();
+        }
+        return (Graphics2D) strategy.getDrawGraphics();
+    }
+
+    @Override
+    public boolean end() {
+        if (strategy.contentsRestored()) {
+            return false;
+        }
+        strategy.show();
+        return !strategy.contentsLost();
+    }
+
+}
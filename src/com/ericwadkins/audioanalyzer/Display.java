@@ -0,0 +1,192 @@
+package com.ericwadkins.audioanalyzer;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A window that shows the most recent frame. Frames reach a window through its FrameSlot, and all windows are
+ * redrawn by the shared RenderScheduler at their own rate, only when there is a new frame or their size changed.
+ * Closing a window disposes it, and once the last one is closed, or escape is pressed in any of them, the
+ * listener set with onAllClosed is run.
+ */
+public class Display {
+
+    public enum Style {
+        SPECTRUM, // The current spectrum with its peaks and levels
+        SPECTROGRAM; // The last SPECTROGRAM_SECONDS of spectra, scrolling
+
+        public FrameRenderer createRenderer() {
+            switch (this) {
+                case SPECTROGRAM:
+                    return new SpectrogramRenderer(Math.max(1, (int) Math.round(
+                            Analyzer.SPECTROGRAM_SECONDS * framesPerSecond())));
+                default:
+                    return new SpectrumRenderer();
+            }
+        }
+    }
+
+    private static final AtomicInteger idCount = new AtomicInteger();
+    private static final Map<Integer, Display> displays = new ConcurrentHashMap<>();
+    private static volatile Runnable allClosed = null;
+
+    private final int id;
+    private final JFrame window;
+    private final Canvas canvas;
+    private final RenderTarget target;
+    private final FrameRenderer renderer;
+    private final FrameSlot slot = new FrameSlot();
+    private final long period; // Nanoseconds between redraws
+
+    // Scheduling state, only used by the scheduler thread
+    long due;
+    long skipped = 0;
+    private int renderedWidth = -1;
+    private int renderedHeight = -1;
+
+    private volatile boolean closing = false;
+
+    private Display(int id, String title, Style style, int fps) {
+        this.id = id;
+        this.period = 1_000_000_000L / fps;
+        window = new JFrame(title == null ? "Audio Analyzer " + id : title);
+        window.setSize(Analyzer.width, Analyzer.height + 22);
+        window.setLayout(new GridLayout(3, 1));
+        window.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        JPanel controlPanel = new JPanel();
+        controlPanel.setLayout(new FlowLayout());
+
+        window.add(controlPanel);
+        window.setVisible(true);
+        canvas = new Canvas();
+        canvas.setBackground(Color.BLACK);
+        canvas.setSize(Analyzer.width, Analyzer.height);
+        controlPanel.add(canvas);
+
+        window.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                canvas.setSize(window.getWidth(), window.getHeight());
+            }
+        });
+        window.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                close();
+            }
+        });
+        KeyListener exit = new KeyAdapter() {
+            @Override
+            public void keyTyped(KeyEvent e) {
+                if (e.getExtendedKeyCode() == 27) {
+                    closeAll();
+                }
+            }
+        };
+        window.addKeyListener(exit);
+        canvas.addKeyListener(exit);
+
+        target = new CanvasTarget(canvas);
+        renderer = style.createRenderer();
+    }
+
+    // Frames analyzed per second at the configured sample rate
+    public static double framesPerSecond() {
+        int hop = Analyzer.HOP_SIZE > 0 ? Analyzer.HOP_SIZE : Analyzer.SAMPLES_PER_SECOND / Analyzer.UPDATES_PER_SECOND;
+        return (double) Analyzer.SAMPLES_PER_SECOND / hop;
+    }
+
+    public static int create(String title, Style style) {
+        return create(title, style, Analyzer.DISPLAY_FPS);
+    }
+
+    // Opens a window redrawn at most fps times a second, returning its id
+    public static int create(String title, Style style, int fps) {
+        if (fps <= 0) {
+            throw new IllegalArgumentException("Frame rate must be positive");
+        }
+        Display display = new Display(idCount.incrementAndGet(), title, style, fps);
+        displays.put(display.id, display);
+        RenderScheduler.get().add(display);
+        return display.id;
+    }
+
+    // Passes a frame to a display, which copies what it needs before returning. Frames for closed displays are
+    // ignored.
+    public static void update(int id, Analyzer.Frame frame) {
+        Display display = displays.get(id);
+        if (display != null) {
+            display.renderer.update(frame);
+            display.slot.publish(frame);
+        }
+    }
+
+    public static FrameSlot getSlot(int id) {
+        Display display = displays.get(id);
+        return display == null ? null : display.slot;
+    }
+
+    // Number of windows that are open
+    public static int count() {
+        return displays.size();
+    }
+
+    // Sets what to run once the last window has closed
+    public static void onAllClosed(Runnable listener) {
+        allClosed = listener;
+    }
+
+    // Closes every window
+    public static void closeAll() {
+        for (Display display : displays.values()) {
+            display.close();
+        }
+    }
+
+    // Asks the scheduler to remove the window, which it does between redraws
+    public void close() {
+        closing = true;
+        RenderScheduler.get().wake();
+    }
+
+    boolean isClosing() {
+        return closing;
+    }
+
+    long getPeriod() {
+        return period;
+    }
+
+    // Called by the scheduler when the display is due: redraws if anything changed, returning whether it did
+    boolean render() {
+        Analyzer.Frame frame = slot.take();
+        boolean resized = target.getWidth() != renderedWidth || target.getHeight() != renderedHeight;
+        if (frame == null && resized) {
+            frame = slot.current();
+        }
+        if (frame == null || !canvas.isDisplayable()) {
+            return false;
+        }
+        renderedWidth = target.getWidth();
+        renderedHeight = target.getHeight();
+        renderer.render(target, frame);
+        return true;
+    }
+
+    // Called by the scheduler once the display will not be drawn again
+    void dispose() {
+        System.out.println(window.getTitle() + ": " + slot.getTaken() + " frames shown, " + slot.getDropped()
+                + " dropped, " + slot.getDuplicates() + " unchanged, " + skipped + " redraws skipped");
+        displays.remove(id);
+        EventQueue.invokeLater(window::dispose);
+        Runnable listener = allClosed;
+        if (displays.isEmpty() && listener != null) {
+            listener.run();
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Encodes and decodes FrameEvent packets in the same wire format as getBytes() and extract(), without allocating.
+ *
+ * A packet is the 3-bit type followed by the 9-bit hue, 7-bit saturation and 7-bit brightness fields the type says
+ * changed, packed from the lowest bit of the first byte upwards and padded to whole bytes. Instead of moving one bit
+ * at a time, the fields are shifted into a 64-bit accumulator, which is then written or read a byte at a time, so a
+ * packet costs a handful of shifts whatever its size. Packets go to and come from a caller's ByteBuffer, and many
+ * can be encoded into one buffer at once.
+ *
+ * main() fuzzes the codec against getBytes() and extract(), which are kept as the reference.
+ */
+public class EventCodec {
+
+    public static final int MAX_LENGTH = 4; // Bytes of a packet with every change
+
+    // Bits of the type
+    public static final int HUE_CHANGE = 1;
+    public static final int SATURATION_CHANGE = 2;
+    public static final int BRIGHTNESS_CHANGE = 4;
+
+    private static final int TYPE_BITS = 3;
+    private static final int HUE_BITS = 9;
+    private static final int SATURATION_BITS = 7;
+    private static final int BRIGHTNESS_BITS = 7;
+
+    // Packet length of every type
+    private static final int[] LENGTHS = new int[1 << TYPE_BITS];
+
+    static {
+        for (int type = 0; type < LENGTHS.length; type++) {
+            LENGTHS[type] = Analyzer.FrameEvent.length(type);
+        }
+    }
+
+    private EventCodec() {
+    }
+
+    // Bytes in a packet of the given type
+    public static int length(int type) {
+        return LENGTHS[type & (LENGTHS.length - 1)];
+    }
+
+    // Writes the packet of an event at the buffer's position, returning its length. Throws BufferOverflowException,
+    // writing nothing, if it does not fit.
+    public static int encode(Analyzer.FrameEvent event, ByteBuffer buffer) {
+        int type = event.getType();
+        long bits = type;
+        int count = TYPE_BITS;
+        if ((type & HUE_CHANGE) != 0) {
+            bits |= (long) event.getHue() << count;
+            count += HUE_BITS;
+        }
+        if ((type & SATURATION_CHANGE) != 0) {
+            bits |= (long) event.getSaturation() << count;
+            count += SATURATION_BITS;
+        }
+        if ((type & BRIGHTNESS_CHANGE) != 0) {
+            bits |= (long) event.getBrightness() << count;
+            count += BRIGHTNESS_BITS;
+        }
+        int length = (count + 7) >> 3;
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) bits);
+            bits >>>= 8;
+        }
+        return length;
+    }
+
+    // Writes the packets of events[offset] onwards back to back, stopping before the first that does not fit,
+    // returning how many were written
+    public static int encode(Analyzer.FrameEvent[] events, int offset, int count, ByteBuffer buffer) {
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < length(events[offset + i].getType())) {
+                return i;
+            }
+            encode(events[offset + i], buffer);
+        }
+        return count;
+    }
+
+    // Reads the packet at the buffer's position into an event, replacing all of it, and returns its length, or
+    // returns 0 and leaves both untouched if the buffer does not hold the whole packet yet. The values are not range
+    // checked, so a corrupt packet can decode to a hue above 359 or a level above 100.
+    public static int decode(ByteBuffer buffer, Analyzer.FrameEvent event) {
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        int position = buffer.position();
+        int type = buffer.get(position) & ((1 << TYPE_BITS) - 1);
+        int length = LENGTHS[type];
+        if (buffer.remaining() < length) {
+            return 0;
+        }
+        long bits = 0;
+        for (int i = 0; i < length; i++) {
+            bits |= (long) (buffer.get(position + i) & 0xFF) << (i << 3);
+        }
+        buffer.position(position + length);
+
+        bits >>>= TYPE_BITS;
+        int hue = 0;
+        int saturation = 0;
+        int brightness = 0;
+        if ((type & HUE_CHANGE) != 0) {
+            hue = (int) bits & ((1 << HUE_BITS) - 1);
+            bits >>>= HUE_BITS;
+        }
+        if ((type & SATURATION_CHANGE) != 0) {
+            saturation = (int) bits & ((1 << SATURATION_BITS) - 1);
+            bits >>>= SATURATION_BITS;
+        }
+        if ((type & BRIGHTNESS_CHANGE) != 0) {
+            brightness = (int) bits & ((1 << BRIGHTNESS_BITS) - 1);
+        }
+        event.set(type, hue, saturation, brightness);
+        return length;
+    }
+
+    // Usage: EventCodec [events] [seed]
+    // Checks the codec against getBytes() and extract() on random events, random packets and random batches,
+    // throwing on the first difference
+    public static void main(String[] args) {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * MAX_LENGTH);
+        Analyzer.FrameEvent decoded = new Analyzer.FrameEvent();
+
+        for (int n = 0; n < events; n++) {
+            // Encoding matches getBytes(), and decoding its packet gives the event back
+            Analyzer.FrameEvent event = randomEvent(random);
+            byte[] expected = event.getBytes();
+            buffer.clear();
+            int length = encode(event, buffer);
+            byte[] actual = Arrays.copyOf(buffer.array(), length);
+            if (!Arrays.equals(actual, expected)) {
+                throw new IllegalStateException(describe(event) + " encoded as " + Arrays.toString(actual)
+                        + " instead of " + Arrays.toString(expected) + " (seed " + seed + ")");
+            }
+            buffer.flip();
+            if (decode(buffer, decoded) != length || buffer.hasRemaining() || !same(decoded, event)) {
+                throw new IllegalStateException(describe(event) + " decoded as " + describe(decoded)
+                        + " (seed " + seed + ")");
+            }
+
+            // Decoding arbitrary bytes matches extract(), and a packet cut short is not decoded
+            byte[] packet = new byte[MAX_LENGTH];
+            random.nextBytes(packet);
+            int[] values = Analyzer.FrameEvent.extract(packet);
+            ByteBuffer wrapped = ByteBuffer.wrap(packet, 0, length(packet[0]));
+            decode(wrapped, decoded);
+            if (decoded.getType() != values[0]
+                    || (values[1] >= 0 && decoded.getHue() != values[1])
+                    || (values[2] >= 0 && decoded.getSaturation() != values[2])
+                    || (values[3] >= 0 && decoded.getBrightness() != values[3])) {
+                throw new IllegalStateException(Arrays.toString(packet) + " decoded as " + describe(decoded)
+                        + " instead of " + Arrays.toString(values) + " (seed " + seed + ")");
+            }
+            ByteBuffer cut = ByteBuffer.wrap(packet, 0, length(packet[0]) - 1);
+            if (decode(cut, decoded) != 0 || cut.position() != 0) {
+                throw new IllegalStateException("Decoded a packet cut short (seed " + seed + ")");
+            }
+        }
+
+        // Batches fill the buffer with whole packets that decode back in order
+        int batches = Math.max(1, events / 64);
+        for (int n = 0; n < batches; n++) {
+            Analyzer.FrameEvent[] batch = new Analyzer.FrameEvent[1 + random.nextInt(128)];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = randomEvent(random);
+            }
+            buffer.clear();
+            buffer.limit(1 + random.nextInt(buffer.capacity()));
+            int written = encode(batch, 0, batch.length, buffer);
+            if (written < batch.length && buffer.remaining() >= length(batch[written].getType())) {
+                throw new IllegalStateException("Batch stopped with room left (seed " + seed + ")");
+            }
+            buffer.flip();
+            for (int i = 0; i < written; i++) {
+                if (decode(buffer, decoded) == 0 || !same(decoded, batch[i])) {
+                    throw new IllegalStateException("Batch event " + i + " decoded as " + describe(decoded)
+                            + " instead of " + describe(batch[i]) + " (seed " + seed + ")");
+                }
+            }
+            if (buffer.hasRemaining()) {
+                throw new IllegalStateException("Batch left bytes over (seed " + seed + ")");
+            }
+        }
+        System.out.println(events + " events and " + batches + " batches match getBytes() and extract() (seed "
+                + seed + ")");
+    }
+
+    // An event with a random set of changes, possibly none
+    private static Analyzer.FrameEvent randomEvent(Random random) {
+        Analyzer.FrameEvent event = new Analyzer.FrameEvent();
+        int type = random.nextInt(1 << TYPE_BITS);
+        if ((type & HUE_CHANGE) != 0) {
+            event.changeHue(random.nextInt(360));
+        }
+        if ((type & SATURATION_CHANGE) != 0) {
+            event.changeSaturation(random.nextInt(101));
+        }
+        if ((type & BRIGHTNESS_CHANGE) != 0) {
+            event.changeBrightness(random.nextInt(101));
+        }
+        return event;
+    }
+
+    // Whether two events make the same changes
+    private static boolean same(Analyzer.FrameEvent a, Analyzer.FrameEvent b) {
+        int type = a.getType();
+        return type == b.getType()
+                && ((type & HUE_CHANGE) == 0 || a.getHue() == b.getHue())
+                && ((type & SATURATION_CHANGE) == 0 || a.getSaturation() == b.getSaturation())
+                && ((type & BRIGHTNESS_CHANGE) == 0 || a.getBrightness() == b.getBrightness());
+    }
+
+    private static String describe(Analyzer.FrameEvent event) {
+        return "event " + event.getType() + " (" + event.getHue() + ", " + event.getSaturation() + ", "
+                + event.getBrightness() + ")";
+    }
+
+}
@@ -0,0 +1,71 @@
+package com.ericwadkins.audioanalyzer;
+
+/**
+ * Turns analyzed frames into light color events, only including the values that changed since the last event.
+ */
+public class EventGenerator {
+
+    private int lastHue = -1;
+    private int lastSaturation = -1;
+    private int lastBrightness = -1;
+    private final Analyzer.FrameEvent event = new Analyzer.FrameEvent(); // Returned by every call to next()
+
+    public EventGenerator() {
+    }
+
+    // Copies the last values of another generator
+    public EventGenerator(EventGenerator other) {
+        lastHue = other.lastHue;
+        lastSaturation = other.lastSaturation;
+        lastBrightness = other.lastBrightness;
+    }
+
+    // Returns the event for the frame, whose type is 0 if nothing changed. The same event is cleared and returned
+    // again by the next call, so it must be used or copied before then.
+    public Analyzer.FrameEvent next(Analyzer.Frame frame) {
+        event.clear();
+
+        int hue = hue(frame);
+        int saturation = saturation(frame);
+        int brightness = brightness(frame);
+
+        if (hue != lastHue) {
+            event.changeHue(hue);
+            lastHue = hue;
+        }
+        if (saturation != lastSaturation) {
+            event.changeSaturation(saturation);
+            lastSaturation = saturation;
+        }
+        if (brightness != lastBrightness) {
+            event.changeBrightness(brightness);
+            lastBrightness = brightness;
+        }
+        return event;
+    }
+
+    // Whether the next event of both generators would be the same for the same frame
+    public boolean sameState(EventGenerator other) {
+        return lastHue == other.lastHue && lastSaturation == other.lastSaturation
+                && lastBrightness == other.lastBrightness;
+    }
+
+    public static int hue(Analyzer.Frame frame) {
+        return (int) ((((double) frame.peakAverage * Analyzer.COLOR_SPECTRUMS / frame.processed.length) % 1) * 360);
+    }
+
+    public static int saturation(Analyzer.Frame frame) {
+        if (frame.maxBassIntensityDifference > 0.4) {
+            return 0; // white
+        }
+        return 100; // full color
+    }
+
+    public static int brightness(Analyzer.Frame frame) {
+        if (frame.maxBassIntensityDifference > 0.05) {
+            return (int) (50 + frame.maxBassIntensityDifference * 50);
+        }
+        return 50;
+    }
+
+}
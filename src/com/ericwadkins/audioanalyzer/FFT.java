@@ -2,89 +2,114 @@ package com.ericwadkins.audioanalyzer;
 
 import com.ericwadkins.audioanalyzer.Complex;
 
+import java.util.Arrays;
+
 /******************************************************************************
  *  Compilation:  javac com.ericwadkins.audioanalyzer.FFT.java
  *  Execution:    java com.ericwadkins.audioanalyzer.FFT n
  *  Dependencies: com.ericwadkins.audioanalyzer.Complex.java
  *
  *  Compute the com.ericwadkins.audioanalyzer.FFT and inverse com.ericwadkins.audioanalyzer.FFT of a length n complex sequence.
- *  Bare bones implementation that runs in O(n log n) time. Our goal
- *  is to optimize the clarity of the code, rather than performance.
- *
- *  Limitations
- *  -----------
- *   -  assumes n is a power of 2
- *
- *   -  not the most memory efficient algorithm (because it uses
- *      an object type for representing complex numbers and because
- *      it re-allocates memory for the subarray, instead of doing
- *      in-place or reusing a single temporary array)
+ *  The transform runs in place on a pair of primitive arrays (real and
+ *  imaginary parts) using a cached com.ericwadkins.audioanalyzer.FFTPlan,
+ *  so no objects are allocated per butterfly or per recursion level.
+ *  Any n is supported in O(n log n) time: powers of 2 use radix 2,
+ *  products of 2, 3 and 5 use mixed radix kernels and anything else
+ *  uses Bluestein's algorithm.
+ *  The com.ericwadkins.audioanalyzer.Complex[] methods are thin adapters
+ *  around the primitive ones.
  *
  ******************************************************************************/
 
 public class FFT {
 
-    // compute the com.ericwadkins.audioanalyzer.FFT of x[], assuming its length is a power of 2
-    public static Complex[] fft(Complex[] x) {
-        int n = x.length;
-
-        // base case
-        if (n == 1) return new Complex[] { x[0] };
+    // compute the com.ericwadkins.audioanalyzer.FFT of re[] + i im[] in place
+    public static void fft(double[] re, double[] im) {
+        if (im.length != re.length) { throw new RuntimeException("Dimensions don't agree"); }
+        FFTPlan.get(re.length, false).execute(re, im);
+    }
 
-        // radix 2 Cooley-Tukey com.ericwadkins.audioanalyzer.FFT
-        if (n % 2 != 0) { throw new RuntimeException("n is not a power of 2"); }
+    // compute the inverse com.ericwadkins.audioanalyzer.FFT of re[] + i im[] in place
+    public static void ifft(double[] re, double[] im) {
+        if (im.length != re.length) { throw new RuntimeException("Dimensions don't agree"); }
+        FFTPlan.get(re.length, true).execute(re, im);
+    }
 
-        // fft of even terms
-        Complex[] even = new Complex[n/2];
-        for (int k = 0; k < n/2; k++) {
-            even[k] = x[2*k];
+    // compute the magnitudes of the first n/2 bins of the com.ericwadkins.audioanalyzer.FFT of the real signal x[],
+    // using a transform of half the length when n is even
+    public static void realMagnitudes(double[] x, double[] out) {
+        int n = x.length;
+        FFTPlan plan = realPlan(n);
+        double[][] s = plan.scratch();
+        for (int j = 0; j < n; j++) {
+            s[j & 1][j >> 1] = x[j];
         }
-        Complex[] q = fft(even);
+        realMagnitudes(plan, n, out);
+    }
 
-        // fft of odd terms
-        Complex[] odd  = even;  // reuse the array
-        for (int k = 0; k < n/2; k++) {
-            odd[k] = x[2*k + 1];
-        }
-        Complex[] r = fft(odd);
+    // the plan that transforms a real signal of n samples: put sample j in plan.scratch()[j & 1][j >> 1], which
+    // packs the samples as a complex sequence of half the length, then call realMagnitudes(plan, n, out)
+    public static FFTPlan realPlan(int n) {
+        return FFTPlan.get(n % 2 != 0 ? n : n/2, false);
+    }
 
-        // combine
-        Complex[] y = new Complex[n];
+    // compute the magnitudes of the first n/2 bins of the real signal of n samples packed into the scratch
+    // buffers of realPlan(n)
+    public static void realMagnitudes(FFTPlan plan, int n, double[] out) {
+        double[][] s = plan.scratch();
+        if (n % 2 == 0) {
+            plan.realMagnitudes(s[0], s[1], out);
+            return;
+        }
+        // odd lengths cannot be packed, so unpack into a full length complex sequence
+        double[] re = s[2];
+        double[] im = s[3];
+        for (int j = 0; j < n; j++) {
+            re[j] = s[j & 1][j >> 1];
+            im[j] = 0.0;
+        }
+        plan.execute(re, im);
         for (int k = 0; k < n/2; k++) {
-            double kth = -2 * k * Math.PI / n;
-            Complex wk = new Complex(Math.cos(kth), Math.sin(kth));
-            y[k]       = q[k].plus(wk.times(r[k]));
-            y[k + n/2] = q[k].minus(wk.times(r[k]));
+            out[k] = Math.sqrt(re[k] * re[k] + im[k] * im[k]);
         }
-        return y;
     }
 
-
-    // compute the inverse com.ericwadkins.audioanalyzer.FFT of x[], assuming its length is a power of 2
-    public static Complex[] ifft(Complex[] x) {
+    // compute the com.ericwadkins.audioanalyzer.FFT of x[]
+    public static Complex[] fft(Complex[] x) {
         int n = x.length;
-        Complex[] y = new Complex[n];
+        double[] re = new double[n];
+        double[] im = new double[n];
+        split(x, re, im);
+        fft(re, im);
+        return join(re, im);
+    }
 
-        // take conjugate
-        for (int i = 0; i < n; i++) {
-            y[i] = x[i].conjugate();
-        }
 
-        // compute forward com.ericwadkins.audioanalyzer.FFT
-        y = fft(y);
+    // compute the inverse com.ericwadkins.audioanalyzer.FFT of x[]
+    public static Complex[] ifft(Complex[] x) {
+        int n = x.length;
+        double[] re = new double[n];
+        double[] im = new double[n];
+        split(x, re, im);
+        ifft(re, im);
+        return join(re, im);
+    }
 
-        // take conjugate again
-        for (int i = 0; i < n; i++) {
-            y[i] = y[i].conjugate();
+    // copy the real and imaginary parts of x[] into re[] and im[]
+    private static void split(Complex[] x, double[] re, double[] im) {
+        for (int i = 0; i < x.length; i++) {
+            re[i] = x[i].re();
+            im[i] = x[i].im();
         }
+    }
 
-        // divide by n
-        for (int i = 0; i < n; i++) {
-            y[i] = y[i].scale(1.0 / n);
+    // build a com.ericwadkins.audioanalyzer.Complex[] from re[] and im[]
+    private static Complex[] join(double[] re, double[] im) {
+        Complex[] y = new Complex[re.length];
+        for (int i = 0; i < re.length; i++) {
+            y[i] = new Complex(re[i], im[i]);
         }
-
         return y;
-
     }
 
     // compute the circular convolution of x and y
@@ -95,35 +120,49 @@ public class FFT {
         if (x.length != y.length) { throw new RuntimeException("Dimensions don't agree"); }
 
         int n = x.length;
-
-        // compute com.ericwadkins.audioanalyzer.FFT of each sequence
-        Complex[] a = fft(x);
-        Complex[] b = fft(y);
-
-        // point-wise multiply
-        Complex[] c = new Complex[n];
-        for (int i = 0; i < n; i++) {
-            c[i] = a[i].times(b[i]);
-        }
-
-        // compute inverse com.ericwadkins.audioanalyzer.FFT
-        return ifft(c);
+        FFTPlan forward = FFTPlan.get(n, false);
+        double[][] s = forward.scratch();
+        split(x, s[0], s[1]);
+        split(y, s[2], s[3]);
+        return cconvolve(forward, s);
     }
 
 
     // compute the linear convolution of x and y
     public static Complex[] convolve(Complex[] x, Complex[] y) {
-        Complex ZERO = new Complex(0, 0);
+        if (x.length != y.length) { throw new RuntimeException("Dimensions don't agree"); }
+
+        int n = 2*x.length;
+        FFTPlan forward = FFTPlan.get(n, false);
+        double[][] s = forward.scratch();
+        for (double[] buffer : s) {
+            Arrays.fill(buffer, x.length, n, 0.0);
+        }
+        split(x, s[0], s[1]);
+        split(y, s[2], s[3]);
+        return cconvolve(forward, s);
+    }
 
-        Complex[] a = new Complex[2*x.length];
-        for (int i = 0;        i <   x.length; i++) a[i] = x[i];
-        for (int i = x.length; i < 2*x.length; i++) a[i] = ZERO;
+    // circular convolution of s[0] + i s[1] with s[2] + i s[3], using the plan's scratch buffers
+    private static Complex[] cconvolve(FFTPlan forward, double[][] s) {
+        int n = forward.n;
+        double[] aRe = s[0], aIm = s[1], bRe = s[2], bIm = s[3];
 
-        Complex[] b = new Complex[2*y.length];
-        for (int i = 0;        i <   y.length; i++) b[i] = y[i];
-        for (int i = y.length; i < 2*y.length; i++) b[i] = ZERO;
+        // compute com.ericwadkins.audioanalyzer.FFT of each sequence
+        forward.execute(aRe, aIm);
+        forward.execute(bRe, bIm);
+
+        // point-wise multiply
+        for (int i = 0; i < n; i++) {
+            double re = aRe[i] * bRe[i] - aIm[i] * bIm[i];
+            double im = aRe[i] * bIm[i] + aIm[i] * bRe[i];
+            aRe[i] = re;
+            aIm[i] = im;
+        }
 
-        return cconvolve(a, b);
+        // compute inverse com.ericwadkins.audioanalyzer.FFT
+        FFTPlan.get(n, true).execute(aRe, aIm);
+        return join(aRe, aIm);
     }
 
     // display an array of com.ericwadkins.audioanalyzer.Complex numbers to standard output
@@ -0,0 +1,449 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Precomputed state for a transform of one size and direction: the twiddle factors, the bit-reversal
+ * permutation and per-thread scratch buffers. Plans are immutable apart from their scratch buffers and are shared
+ * through a bounded cache, so the trigonometry is paid once per size rather than once per frame.
+ *
+ * Powers of 2 use an in-place radix 2 transform, lengths whose only prime factors are 2, 3 and 5 use a mixed
+ * radix Stockham transform, and any other length falls back to Bluestein's chirp-z algorithm on top of a power of
+ * 2 plan. All three run in O(n log n).
+ *
+ * Lookups of a cached plan go through a small lock-free table in front of the cache, so the transforms neither lock
+ * nor allocate once their plans exist, however many threads share them.
+ */
+public class FFTPlan {
+
+    // Maximum number of plans kept in the cache, least recently used plans are evicted first
+    public static final int MAX_CACHED_PLANS = 32;
+
+    // Number of scratch buffers handed out by scratch()
+    public static final int SCRATCH_BUFFERS = 4;
+
+    // Slots of the lock-free table, a power of 2
+    private static final int RECENT_PLANS = 64;
+
+    // Every plan in the table is also in the cache, so evicting a plan from the cache also clears its slot
+    private static final AtomicReferenceArray<FFTPlan> recent = new AtomicReferenceArray<>(RECENT_PLANS);
+
+    private static final Map<Long, FFTPlan> cache = new LinkedHashMap<Long, FFTPlan>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, FFTPlan> eldest) {
+            if (size() > MAX_CACHED_PLANS) {
+                FFTPlan plan = eldest.getValue();
+                recent.compareAndSet(slot(plan.n, plan.inverse), plan, null);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    public final int n;
+    public final boolean inverse;
+
+    // Radix 2 and mixed radix twiddles, inverse plans use the conjugate twiddles
+    private final double[] cos;
+    private final double[] sin;
+
+    // Radix 2 only
+    private final int[] reversed;
+
+    // Mixed radix only, the radix of each stage
+    private final int[] radices;
+
+    // Bluestein only, the chirp and the transform of the convolution kernel
+    private final double[] chirpCos;
+    private final double[] chirpSin;
+    private final double[] kernelRe;
+    private final double[] kernelIm;
+    private final FFTPlan convolutionForward;
+    private final FFTPlan convolutionInverse;
+
+    // Twiddles for unpacking a real transform of length 2n from this plan
+    private final double[] realCos;
+    private final double[] realSin;
+
+    private final ThreadLocal<double[][]> scratch;
+    private final ThreadLocal<double[][]> work;
+
+    private FFTPlan(int n, boolean inverse) {
+        if (n <= 0) {
+            throw new RuntimeException("n must be positive");
+        }
+        this.n = n;
+        this.inverse = inverse;
+
+        int[] factors = factor(n);
+        if ((n & (n - 1)) == 0) {
+            reversed = new int[n];
+            int bits = Integer.numberOfTrailingZeros(n);
+            for (int i = 0; i < n; i++) {
+                reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            }
+            radices = null;
+            cos = new double[n / 2];
+            sin = new double[n / 2];
+        }
+        else if (factors != null) {
+            reversed = null;
+            radices = factors;
+            cos = new double[n];
+            sin = new double[n];
+        }
+        else {
+            reversed = null;
+            radices = null;
+            cos = null;
+            sin = null;
+        }
+        if (cos != null) {
+            for (int k = 0; k < cos.length; k++) {
+                double kth = -2 * k * Math.PI / n;
+                cos[k] = Math.cos(kth);
+                sin[k] = inverse ? -Math.sin(kth) : Math.sin(kth);
+            }
+        }
+
+        if (reversed == null && radices == null) {
+            // Bluestein: x[k] * chirp[k] convolved with conj(chirp), using a power of 2 at least 2n - 1 long
+            int m = Integer.highestOneBit(2 * n - 1);
+            if (m < 2 * n - 1) {
+                m <<= 1;
+            }
+            chirpCos = new double[n];
+            chirpSin = new double[n];
+            for (int k = 0; k < n; k++) {
+                // k^2 is reduced mod 2n to keep the angle accurate for large k
+                double kth = -Math.PI * (((long) k * k) % (2L * n)) / n;
+                chirpCos[k] = Math.cos(kth);
+                chirpSin[k] = inverse ? -Math.sin(kth) : Math.sin(kth);
+            }
+            convolutionForward = get(m, false);
+            convolutionInverse = get(m, true);
+            kernelRe = new double[m];
+            kernelIm = new double[m];
+            kernelRe[0] = chirpCos[0];
+            kernelIm[0] = -chirpSin[0];
+            for (int k = 1; k < n; k++) {
+                kernelRe[k] = kernelRe[m - k] = chirpCos[k];
+                kernelIm[k] = kernelIm[m - k] = -chirpSin[k];
+            }
+            convolutionForward.execute(kernelRe, kernelIm);
+            int size = m;
+            work = ThreadLocal.withInitial(() -> new double[2][size]);
+        }
+        else {
+            chirpCos = null;
+            chirpSin = null;
+            kernelRe = null;
+            kernelIm = null;
+            convolutionForward = null;
+            convolutionInverse = null;
+            work = radices != null ? ThreadLocal.withInitial(() -> new double[2][n]) : null;
+        }
+
+        if (inverse) {
+            realCos = null;
+            realSin = null;
+        }
+        else {
+            realCos = new double[n];
+            realSin = new double[n];
+            for (int k = 0; k < n; k++) {
+                double kth = -k * Math.PI / n;
+                realCos[k] = Math.cos(kth);
+                realSin[k] = Math.sin(kth);
+            }
+        }
+
+        scratch = ThreadLocal.withInitial(() -> new double[SCRATCH_BUFFERS][n]);
+    }
+
+    // Returns the cached plan for the given size and direction, creating it if necessary
+    public static FFTPlan get(int n, boolean inverse) {
+        int slot = slot(n, inverse);
+        FFTPlan plan = recent.get(slot);
+        if (plan != null && plan.n == n && plan.inverse == inverse) {
+            return plan;
+        }
+        Long key = ((long) n << 1) | (inverse ? 1 : 0);
+        synchronized (cache) {
+            plan = cache.get(key);
+            if (plan == null) {
+                plan = new FFTPlan(n, inverse);
+                cache.put(key, plan);
+            }
+            // Under the lock, so an eviction cannot clear the slot before this plan is in it
+            recent.set(slot, plan);
+            return plan;
+        }
+    }
+
+    // Slot of a size and direction in the lock-free table, spreading out the powers of 2
+    private static int slot(int n, boolean inverse) {
+        return (((n << 1) | (inverse ? 1 : 0)) * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(RECENT_PLANS));
+    }
+
+    // Splits n into radices 5, 3 and 2, or returns null if n has any other prime factor
+    private static int[] factor(int n) {
+        int[] radices = new int[32];
+        int count = 0;
+        for (int radix : new int[] {5, 3, 2}) {
+            while (n % radix == 0) {
+                radices[count++] = radix;
+                n /= radix;
+            }
+        }
+        if (n != 1) {
+            return null;
+        }
+        int[] trimmed = new int[count];
+        System.arraycopy(radices, 0, trimmed, 0, count);
+        return trimmed;
+    }
+
+    // Buffers of length n owned by the calling thread, contents are undefined between uses
+    public double[][] scratch() {
+        return scratch.get();
+    }
+
+    // Transforms re[] + i im[] in place, inverse plans also divide by n
+    public void execute(double[] re, double[] im) {
+        if (re.length != n || im.length != n) {
+            throw new RuntimeException("Dimensions don't agree");
+        }
+        if (n == 1) return;
+
+        if (reversed != null) {
+            radix2(re, im);
+        }
+        else if (radices != null) {
+            mixedRadix(re, im);
+        }
+        else {
+            bluestein(re, im);
+        }
+
+        if (inverse) {
+            double scale = 1.0 / n;
+            for (int i = 0; i < n; i++) {
+                re[i] = re[i] * scale;
+                im[i] = im[i] * scale;
+            }
+        }
+    }
+
+    private void radix2(double[] re, double[] im) {
+        // Reorder the input into bit-reversed order
+        for (int i = 0; i < n; i++) {
+            int j = reversed[i];
+            if (i < j) {
+                double temp = re[i];
+                re[i] = re[j];
+                re[j] = temp;
+                temp = im[i];
+                im[i] = im[j];
+                im[j] = temp;
+            }
+        }
+
+        // Radix 2 butterflies, doubling the transform size at each level
+        for (int size = 2; size <= n; size <<= 1) {
+            int half = size >> 1;
+            int step = n / size;
+            for (int start = 0; start < n; start += size) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    double tr = wr * re[b] - wi * im[b];
+                    double ti = wr * im[b] + wi * re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    // Self-sorting decimation in frequency, one stage per radix, alternating between the input and a work buffer
+    private void mixedRadix(double[] re, double[] im) {
+        double[][] buffers = work.get();
+        double[] xRe = re, xIm = im;
+        double[] yRe = buffers[0], yIm = buffers[1];
+        double sign = inverse ? -1 : 1;
+
+        int length = n;
+        int stride = 1;
+        for (int radix : radices) {
+            int m = length / radix;
+            int step = n / length;
+            for (int p = 0; p < m; p++) {
+                for (int q = 0; q < stride; q++) {
+                    int in = q + stride * p;
+                    int out = q + stride * radix * p;
+                    int inStride = stride * m;
+                    if (radix == 2) {
+                        butterfly2(xRe, xIm, in, inStride, yRe, yIm, out, stride);
+                    }
+                    else if (radix == 3) {
+                        butterfly3(xRe, xIm, in, inStride, yRe, yIm, out, stride, sign);
+                    }
+                    else {
+                        butterfly5(xRe, xIm, in, inStride, yRe, yIm, out, stride, sign);
+                    }
+                    // Twiddle output u by w^(p * u)
+                    for (int u = 1; u < radix; u++) {
+                        int w = p * u * step;
+                        int o = out + stride * u;
+                        double r = yRe[o];
+                        yRe[o] = r * cos[w] - yIm[o] * sin[w];
+                        yIm[o] = r * sin[w] + yIm[o] * cos[w];
+                    }
+                }
+            }
+            double[] temp = xRe;
+            xRe = yRe;
+            yRe = temp;
+            temp = xIm;
+            xIm = yIm;
+            yIm = temp;
+            length = m;
+            stride *= radix;
+        }
+
+        if (xRe != re) {
+            System.arraycopy(xRe, 0, re, 0, n);
+            System.arraycopy(xIm, 0, im, 0, n);
+        }
+    }
+
+    private static void butterfly2(double[] xRe, double[] xIm, int in, int inStride,
+                                   double[] yRe, double[] yIm, int out, int outStride) {
+        double aRe = xRe[in], aIm = xIm[in];
+        double bRe = xRe[in + inStride], bIm = xIm[in + inStride];
+        yRe[out] = aRe + bRe;
+        yIm[out] = aIm + bIm;
+        yRe[out + outStride] = aRe - bRe;
+        yIm[out + outStride] = aIm - bIm;
+    }
+
+    private static final double SIN_3 = -Math.sqrt(3) / 2;
+
+    private static void butterfly3(double[] xRe, double[] xIm, int in, int inStride,
+                                   double[] yRe, double[] yIm, int out, int outStride, double sign) {
+        double aRe = xRe[in], aIm = xIm[in];
+        double bRe = xRe[in + inStride], bIm = xIm[in + inStride];
+        double cRe = xRe[in + 2 * inStride], cIm = xIm[in + 2 * inStride];
+        double sumRe = bRe + cRe, sumIm = bIm + cIm;
+        double midRe = aRe - 0.5 * sumRe, midIm = aIm - 0.5 * sumIm;
+        double s = sign * SIN_3;
+        double rotRe = -s * (bIm - cIm), rotIm = s * (bRe - cRe);
+        yRe[out] = aRe + sumRe;
+        yIm[out] = aIm + sumIm;
+        yRe[out + outStride] = midRe + rotRe;
+        yIm[out + outStride] = midIm + rotIm;
+        yRe[out + 2 * outStride] = midRe - rotRe;
+        yIm[out + 2 * outStride] = midIm - rotIm;
+    }
+
+    private static final double COS_5_1 = Math.cos(2 * Math.PI / 5);
+    private static final double COS_5_2 = Math.cos(4 * Math.PI / 5);
+    private static final double SIN_5_1 = -Math.sin(2 * Math.PI / 5);
+    private static final double SIN_5_2 = -Math.sin(4 * Math.PI / 5);
+
+    private static void butterfly5(double[] xRe, double[] xIm, int in, int inStride,
+                                   double[] yRe, double[] yIm, int out, int outStride, double sign) {
+        double aRe = xRe[in], aIm = xIm[in];
+        double b1Re = xRe[in + inStride] + xRe[in + 4 * inStride];
+        double b1Im = xIm[in + inStride] + xIm[in + 4 * inStride];
+        double b2Re = xRe[in + 2 * inStride] + xRe[in + 3 * inStride];
+        double b2Im = xIm[in + 2 * inStride] + xIm[in + 3 * inStride];
+        double d1Re = xRe[in + inStride] - xRe[in + 4 * inStride];
+        double d1Im = xIm[in + inStride] - xIm[in + 4 * inStride];
+        double d2Re = xRe[in + 2 * inStride] - xRe[in + 3 * inStride];
+        double d2Im = xIm[in + 2 * inStride] - xIm[in + 3 * inStride];
+        double s1 = sign * SIN_5_1, s2 = sign * SIN_5_2;
+
+        double m1Re = aRe + COS_5_1 * b1Re + COS_5_2 * b2Re;
+        double m1Im = aIm + COS_5_1 * b1Im + COS_5_2 * b2Im;
+        double m2Re = aRe + COS_5_2 * b1Re + COS_5_1 * b2Re;
+        double m2Im = aIm + COS_5_2 * b1Im + COS_5_1 * b2Im;
+        // i * (s1 d1 + s2 d2) and i * (s2 d1 - s1 d2)
+        double r1Re = -(s1 * d1Im + s2 * d2Im), r1Im = s1 * d1Re + s2 * d2Re;
+        double r2Re = -(s2 * d1Im - s1 * d2Im), r2Im = s2 * d1Re - s1 * d2Re;
+
+        yRe[out] = aRe + b1Re + b2Re;
+        yIm[out] = aIm + b1Im + b2Im;
+        yRe[out + outStride] = m1Re + r1Re;
+        yIm[out + outStride] = m1Im + r1Im;
+        yRe[out + 2 * outStride] = m2Re + r2Re;
+        yIm[out + 2 * outStride] = m2Im + r2Im;
+        yRe[out + 3 * outStride] = m2Re - r2Re;
+        yIm[out + 3 * outStride] = m2Im - r2Im;
+        yRe[out + 4 * outStride] = m1Re - r1Re;
+        yIm[out + 4 * outStride] = m1Im - r1Im;
+    }
+
+    private void bluestein(double[] re, double[] im) {
+        double[][] buffers = work.get();
+        double[] aRe = buffers[0], aIm = buffers[1];
+        int m = aRe.length;
+
+        // Multiply by the chirp and pad with zeros
+        for (int k = 0; k < n; k++) {
+            aRe[k] = re[k] * chirpCos[k] - im[k] * chirpSin[k];
+            aIm[k] = re[k] * chirpSin[k] + im[k] * chirpCos[k];
+        }
+        for (int k = n; k < m; k++) {
+            aRe[k] = 0.0;
+            aIm[k] = 0.0;
+        }
+
+        // Circular convolution with the conjugate chirp
+        convolutionForward.execute(aRe, aIm);
+        for (int k = 0; k < m; k++) {
+            double r = aRe[k] * kernelRe[k] - aIm[k] * kernelIm[k];
+            aIm[k] = aRe[k] * kernelIm[k] + aIm[k] * kernelRe[k];
+            aRe[k] = r;
+        }
+        convolutionInverse.execute(aRe, aIm);
+
+        // Multiply by the chirp again
+        for (int k = 0; k < n; k++) {
+            re[k] = aRe[k] * chirpCos[k] - aIm[k] * chirpSin[k];
+            im[k] = aRe[k] * chirpSin[k] + aIm[k] * chirpCos[k];
+        }
+    }
+
+    // Computes the magnitudes of the first n bins of the transform of 2n real samples, given the samples packed
+    // as zRe[m] = x[2m] and zIm[m] = x[2m + 1]. The packed arrays are overwritten.
+    public void realMagnitudes(double[] zRe, double[] zIm, double[] out) {
+        if (inverse) {
+            throw new IllegalStateException("Real transforms require a forward plan");
+        }
+        if (out.length < n) {
+            throw new RuntimeException("Dimensions don't agree");
+        }
+        execute(zRe, zIm);
+
+        // Split the packed transform into the transforms of the even and odd samples and recombine
+        for (int k = 0; k < n; k++) {
+            int j = k == 0 ? 0 : n - k;
+            double evenRe = (zRe[k] + zRe[j]) * 0.5;
+            double evenIm = (zIm[k] - zIm[j]) * 0.5;
+            double oddRe = (zIm[k] + zIm[j]) * 0.5;
+            double oddIm = (zRe[j] - zRe[k]) * 0.5;
+            double re = evenRe + realCos[k] * oddRe - realSin[k] * oddIm;
+            double im = evenIm + realCos[k] * oddIm + realSin[k] * oddRe;
+            out[k] = Math.sqrt(re * re + im * im);
+        }
+    }
+
+}
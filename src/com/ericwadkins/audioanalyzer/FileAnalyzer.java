@@ -0,0 +1,265 @@
+package com.ericwadkins.audioanalyzer;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.*;
+import java.nio.ShortBuffer;
+import java.util.Locale;
+
+/**
+ * Offline analysis of an audio file (anything AudioSystem can read, such as WAV or AIFF). The file is decoded to
+ * 16-bit mono PCM and run through the same pipeline as live capture as fast as the CPU allows. Per-frame features
+ * are written as CSV and the FrameEvent stream as binary records of (frame index, length, bytes).
+ *
+ * WAV files that already hold 16-bit mono PCM are memory-mapped instead of streamed, and give the same output.
+ */
+public class FileAnalyzer {
+
+    public static final String FEATURE_HEADER = "frame,time,averageIntensity,averageBassIntensity,maxIntensity,"
+            + "maxFrequency,maxBassIntensity,averageIntensityDifference,averageBassIntensityDifference,"
+            + "maxIntensityDifference,maxBassIntensityDifference,peakAverage,peaks";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: FileAnalyzer <audio file> [features.csv] [events.bin]");
+            return;
+        }
+        File input = new File(args[0]);
+        File features = new File(args.length > 1 ? args[1] : args[0] + ".csv");
+        File events = new File(args.length > 2 ? args[2] : args[0] + ".events");
+
+        long start = System.nanoTime();
+        long frames = analyze(input, features, events);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Analyzed " + frames + " frames of " + input + " in "
+                + String.format(Locale.ROOT, "%.3f", seconds) + " s");
+    }
+
+    // Analyzes a whole file, returning the number of frames written
+    public static long analyze(File input, File features, File events)
+            throws IOException, UnsupportedAudioFileException {
+        try (MappedWavReader reader = openMapped(input)) {
+            if (reader != null) {
+                try (PrintWriter featureWriter = new PrintWriter(new BufferedWriter(new FileWriter(features)));
+                     DataOutputStream eventWriter = new DataOutputStream(
+                             new BufferedOutputStream(new FileOutputStream(events)))) {
+                    return analyze(reader, featureWriter, eventWriter);
+                }
+            }
+        }
+        try (AudioInputStream stream = openPcm(input);
+             PrintWriter featureWriter = new PrintWriter(new BufferedWriter(new FileWriter(features)));
+             DataOutputStream eventWriter = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(events)))) {
+            return analyze(stream, featureWriter, eventWriter);
+        }
+    }
+
+    // Opens a file as signed 16-bit little endian PCM with its original sample rate and channels
+    public static AudioInputStream openPcm(File input) throws IOException, UnsupportedAudioFileException {
+        AudioInputStream stream = AudioSystem.getAudioInputStream(input);
+        AudioFormat source = stream.getFormat();
+        AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, source.getSampleRate(), 16,
+                source.getChannels(), source.getChannels() * 2, source.getSampleRate(), false);
+        if (!source.matches(pcm)) {
+            stream = AudioSystem.getAudioInputStream(pcm, stream);
+        }
+        return stream;
+    }
+
+    // Maps a file if it is a 16-bit mono PCM WAV file, or returns null if it has to be decoded as a stream
+    public static MappedWavReader openMapped(File input) throws IOException {
+        if (!input.getName().toLowerCase(Locale.ROOT).endsWith(".wav")) {
+            return null;
+        }
+        try {
+            return new MappedWavReader(input);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Analyzes a mapped file, returning the number of frames written
+    public static long analyze(MappedWavReader reader, PrintWriter features, DataOutputStream events)
+            throws IOException {
+        FrameAnalyzer analyzer = new FrameAnalyzer((int) reader.getSampleRate());
+        features.println(FEATURE_HEADER);
+        return run(reader, analyzer, new EventGenerator(), 0, Long.MAX_VALUE, 0, features, events);
+    }
+
+    // Analyzes a 16-bit little endian PCM stream, returning the number of frames written
+    public static long analyze(AudioInputStream stream, PrintWriter features, DataOutputStream events)
+            throws IOException {
+        FrameAnalyzer analyzer = new FrameAnalyzer((int) stream.getFormat().getSampleRate());
+        features.println(FEATURE_HEADER);
+        return run(stream, analyzer, new EventGenerator(), 0, Long.MAX_VALUE, 0, features, events);
+    }
+
+    // Analyzes reads first (where the stream is positioned) up to last of a stream, each read being one
+    // analyzer.getReadSize() samples long, but only writes the frames of reads from output onwards. Returns the
+    // number of frames written. Frames are numbered from the start of the stream, so any range of reads gives the
+    // same numbering as a full run.
+    static long run(AudioInputStream stream, FrameAnalyzer analyzer, EventGenerator generator,
+                    long first, long last, long output, PrintWriter features, DataOutputStream events)
+            throws IOException {
+        AudioFormat format = stream.getFormat();
+        int channels = format.getChannels();
+        double hop = (double) analyzer.getReadSize() / format.getSampleRate();
+        long firstFrameRead = firstFrameRead(analyzer);
+
+        byte[] interleaved = new byte[analyzer.getReadSize() * 2 * channels];
+        byte[] raw = new byte[analyzer.getReadSize() * 2];
+        long written = 0;
+        int n;
+        for (long read = first; read < last && (n = readFully(stream, interleaved)) > 0; read++) {
+            downmix(interleaved, n, channels, raw);
+            Analyzer.Frame frame = analyzer.next(raw, raw.length);
+            if (write(generator, frame, read, output, hop, firstFrameRead, features, events)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    // Like the stream version, but takes each read as a window of the mapping. Only the last read, when it is
+    // short and has to be zero padded, is copied.
+    static long run(MappedWavReader reader, FrameAnalyzer analyzer, EventGenerator generator,
+                    long first, long last, long output, PrintWriter features, DataOutputStream events)
+            throws IOException {
+        int readSize = analyzer.getReadSize();
+        double hop = (double) readSize / reader.getSampleRate();
+        long firstFrameRead = firstFrameRead(analyzer);
+        long samples = reader.getSampleCount();
+        long reads = (samples + readSize - 1) / readSize;
+
+        long written = 0;
+        for (long read = first; read < last && read < reads; read++) {
+            long sample = read * readSize;
+            ShortBuffer window;
+            if (sample + readSize <= samples) {
+                window = reader.window(sample, readSize);
+            }
+            else {
+                window = ShortBuffer.allocate(readSize);
+                window.put(reader.window(sample, (int) (samples - sample)));
+                window.clear();
+            }
+            Analyzer.Frame frame = analyzer.next(window);
+            if (write(generator, frame, read, output, hop, firstFrameRead, features, events)) {
+                written++;
+            }
+        }
+        return written;
+    }
+
+    // Generates the event of a frame and writes both if the read is from output onwards, returning whether it did
+    private static boolean write(EventGenerator generator, Analyzer.Frame frame, long read, long output, double hop,
+                                 long firstFrameRead, PrintWriter features, DataOutputStream events)
+            throws IOException {
+        Analyzer.FrameEvent event = frame != null ? generator.next(frame) : null;
+        if (frame == null || read < output) {
+            return false;
+        }
+        long index = read - firstFrameRead;
+        writeFeatures(features, index, (read + 1) * hop, frame);
+        if (event.getType() > 0) {
+            byte[] bytes = event.getBytes();
+            events.writeLong(index);
+            events.writeByte(bytes.length);
+            events.write(bytes);
+        }
+        return true;
+    }
+
+    // Index of the first read that produces a frame, once the analysis window has filled
+    static long firstFrameRead(FrameAnalyzer analyzer) {
+        return (analyzer.getWindowSize() + analyzer.getReadSize() - 1) / analyzer.getReadSize() - 1;
+    }
+
+    // Skips whole bytes of the stream, returning false if it ended first
+    static boolean skipFully(InputStream stream, long bytes) throws IOException {
+        byte[] buffer = null;
+        while (bytes > 0) {
+            long n = stream.skip(bytes);
+            if (n <= 0) {
+                // Some converted streams cannot skip, so read instead
+                if (buffer == null) {
+                    buffer = new byte[8192];
+                }
+                n = stream.read(buffer, 0, (int) Math.min(buffer.length, bytes));
+                if (n < 0) {
+                    return false;
+                }
+            }
+            bytes -= n;
+        }
+        return true;
+    }
+
+    // Reads until the buffer is full or the stream ends, returning the number of bytes read
+    static int readFully(InputStream stream, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = stream.read(buffer, total, buffer.length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    // Averages the channels of length bytes of interleaved 16-bit samples into mono, zero padding a short read
+    static void downmix(byte[] interleaved, int length, int channels, byte[] mono) {
+        int samples = mono.length / 2;
+        for (int i = 0; i < samples; i++) {
+            int sum = 0;
+            for (int c = 0; c < channels; c++) {
+                int offset = (i * channels + c) * 2;
+                if (offset + 1 < length) {
+                    sum += (short) ((interleaved[offset] & 0xFF) | (interleaved[offset + 1] << 8));
+                }
+            }
+            int sample = sum / channels;
+            mono[2 * i] = (byte) sample;
+            mono[2 * i + 1] = (byte) (sample >> 8);
+        }
+    }
+
+    static void writeFeatures(PrintWriter out, long index, double time, Analyzer.Frame frame) {
+        out.print(index);
+        out.print(',');
+        out.print(String.format(Locale.ROOT, "%.4f", time));
+        out.print(',');
+        out.print(frame.averageIntensity);
+        out.print(',');
+        out.print(frame.averageBassIntensity);
+        out.print(',');
+        out.print(frame.maxIntensity);
+        out.print(',');
+        out.print((int) frame.maxFrequency);
+        out.print(',');
+        out.print(frame.maxBassIntensity);
+        out.print(',');
+        out.print(frame.averageIntensityDifference);
+        out.print(',');
+        out.print(frame.averageBassIntensityDifference);
+        out.print(',');
+        out.print(frame.maxIntensityDifference);
+        out.print(',');
+        out.print(frame.maxBassIntensityDifference);
+        out.print(',');
+        out.print(frame.peakAverage);
+        out.print(',');
+        for (int p = 0; p < frame.peaks.length; p++) {
+            if (p > 0) {
+                out.print(' ');
+            }
+            out.print(frame.peaks[p]);
+        }
+        out.println();
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.io.*;
+
+/**
+ * A link through files: a pseudo-terminal, such as one end of a pair made with
+ * {@code socat -d -d pty,raw,echo=0 pty,raw,echo=0}, or a serial device already set up with stty, read and written
+ * through the same path, or separate files to read from and write to, such as /dev/null and a capture of every
+ * packet sent.
+ *
+ * Files carry no baud rate of their own, so the rate given is only what writes are paced to, 0 writing as fast as
+ * the file takes them. Closing does not end a read already blocked on a pseudo-terminal or FIFO.
+ */
+public class FileTransport implements Transport {
+
+    private final File input;
+    private final File output;
+    private final int baudRate;
+
+    private InputStream in = null;
+    private OutputStream out = null;
+
+    // Reads and writes the same file, as for a terminal
+    public FileTransport(File device, int baudRate) {
+        this(device, device, baudRate);
+    }
+
+    public FileTransport(File input, File output, int baudRate) {
+        if (baudRate < 0) {
+            throw new IllegalArgumentException("Baud rate must not be negative");
+        }
+        this.input = input;
+        this.output = output;
+        this.baudRate = baudRate;
+    }
+
+    @Override
+    public void open() throws IOException {
+        in = new FileInputStream(input);
+        try {
+            out = new FileOutputStream(output);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        if (in != null) {
+            return in;
+        }
+        throw new IllegalStateException("The files have not been opened yet.");
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        if (out != null) {
+            return out;
+        }
+        throw new IllegalStateException("The files have not been opened yet.");
+    }
+
+    @Override
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (in != null) {
+                in.close();
+            }
+        } finally {
+            in = null;
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return input.equals(output) ? input.getPath() : input.getPath() + " -> " + output.getPath();
+    }
+
+}
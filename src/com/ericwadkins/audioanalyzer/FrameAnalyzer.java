@@ -0,0 +1,130 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.nio.ShortBuffer;
+
+/**
+ * The per-stream state of the analysis: the spectrum source, the frame history, the processing pipeline and the
+ * peak detector. Blocks of 16-bit mono PCM go in and analyzed frames come out. Consecutive frames only depend on
+ * each other through the history (and, when overlapping, the samples held by the spectrum source), so separate
+ * streams can be analyzed on separate threads with separate instances.
+ */
+public class FrameAnalyzer {
+
+    private final SpectrumSource source;
+    private final FrameHistory history;
+    private final SpectrumPipeline pipeline;
+    private final PeakDetector detector;
+    private final int windowSize;
+    private final int readSize;
+    private final int bins;
+
+    // Analyzes blocks of sampleRate / UPDATES_PER_SECOND samples, or hops of HOP_SIZE samples when overlapping
+    public FrameAnalyzer(int sampleRate) {
+        this(sampleRate / Analyzer.UPDATES_PER_SECOND, Analyzer.HOP_SIZE);
+    }
+
+    public FrameAnalyzer(int blockSize, int hopSize) {
+        windowSize = blockSize;
+        if (hopSize > 0) {
+            source = Analyzer.SLIDING_DFT ? new SlidingDFT(blockSize, hopSize, Analyzer.RESEED_INTERVAL)
+                    : new STFT(blockSize, hopSize, Analyzer.WINDOW);
+            readSize = hopSize;
+            bins = source.bins();
+        }
+        else {
+            source = null;
+            readSize = blockSize;
+            bins = blockSize / 2;
+        }
+        history = new FrameHistory(Analyzer.STACK_SIZE);
+        pipeline = SpectrumPipeline.createDefault();
+        detector = new PeakDetector(Analyzer.PEAK_WIDTH);
+    }
+
+    // Number of samples to pass to each call of next
+    public int getReadSize() {
+        return readSize;
+    }
+
+    // Number of samples each spectrum is calculated over
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    // Whether the spectrum of a frame depends on more than the samples in its window
+    public boolean isIncremental() {
+        return source instanceof SlidingDFT;
+    }
+
+    public FrameHistory getHistory() {
+        return history;
+    }
+
+    public SpectrumPipeline getPipeline() {
+        return pipeline;
+    }
+
+    // Analyzes the next length bytes of PCM and adds the frame to the history. Returns null when overlapping and
+    // the source needs more samples. The frame is recycled once it leaves the history.
+    public Analyzer.Frame next(byte[] raw, int length) {
+        // Calculate the frequency data
+        if (source != null) {
+            source.write(raw, 0, length);
+            if (!source.ready()) {
+                return null;
+            }
+        }
+        Analyzer.Frame frame = obtain();
+        frame.raw = raw;
+        if (source != null) {
+            source.frame(frame.frequencies);
+        }
+        else {
+            Analyzer.calculateFFT(raw, frame.frequencies);
+        }
+        return finish(frame);
+    }
+
+    // Like next, but reads the remaining samples of the buffer in place, such as a window of a MappedWavReader.
+    // The frame's raw bytes are left null.
+    public Analyzer.Frame next(ShortBuffer samples) {
+        // Calculate the frequency data
+        if (source != null) {
+            source.write(samples);
+            if (!source.ready()) {
+                return null;
+            }
+        }
+        Analyzer.Frame frame = obtain();
+        frame.raw = null;
+        if (source != null) {
+            source.frame(frame.frequencies);
+        }
+        else {
+            Analyzer.calculateFFT(samples, frame.frequencies);
+        }
+        return finish(frame);
+    }
+
+    private Analyzer.Frame obtain() {
+        Analyzer.Frame frame = history.obtain();
+        if (frame.frequencies == null || frame.frequencies.length != bins) {
+            frame.frequencies = new double[bins];
+        }
+        return frame;
+    }
+
+    private Analyzer.Frame finish(Analyzer.Frame frame) {
+        // Process the raw data
+        Analyzer.process(frame, history, pipeline);
+
+        // Analyze the processed data
+        Analyzer.analyze(frame, detector);
+
+        // Add the frame to the stack for the next frame, recycling the oldest
+        history.push(frame);
+        frame.stack = null;
+        return frame;
+    }
+
+}
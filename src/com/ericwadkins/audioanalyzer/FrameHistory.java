@@ -0,0 +1,98 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.util.AbstractList;
+
+/**
+ * Fixed-capacity ring of the most recent frames, oldest first. The ring itself is a read-only List view, so it can
+ * be handed to process and analyze without copying. Frames evicted from the ring are recycled by obtain() along
+ * with their arrays, so a steady stream of frames allocates nothing once the ring is full.
+ */
+public class FrameHistory extends AbstractList<Analyzer.Frame> {
+
+    private final Analyzer.Frame[] frames;
+    private int start = 0;
+    private int size = 0;
+
+    // Frames that have left the ring and can be reused
+    private final Analyzer.Frame[] spares;
+    private int spareCount = 0;
+
+    public FrameHistory(int capacity) {
+        this(capacity, 1);
+    }
+
+    public FrameHistory(int capacity, int spareCapacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        frames = new Analyzer.Frame[capacity];
+        spares = new Analyzer.Frame[Math.max(1, spareCapacity)];
+    }
+
+    public int capacity() {
+        return frames.length;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Analyzer.Frame get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return frames[(start + index) % frames.length];
+    }
+
+    // The most recent frame, or null if the ring is empty
+    public Analyzer.Frame last() {
+        return size == 0 ? null : get(size - 1);
+    }
+
+    // Returns a recycled frame with its arrays intact and its values cleared, or a new frame if none is spare
+    public Analyzer.Frame obtain() {
+        if (spareCount == 0) {
+            return new Analyzer.Frame();
+        }
+        Analyzer.Frame frame = spares[--spareCount];
+        spares[spareCount] = null;
+        frame.clear();
+        return frame;
+    }
+
+    // Adds a frame as the most recent one, evicting and recycling the oldest when the ring is full
+    public void push(Analyzer.Frame frame) {
+        if (size < frames.length) {
+            frames[(start + size) % frames.length] = frame;
+            size++;
+        }
+        else {
+            recycle(frames[start]);
+            frames[start] = frame;
+            start = (start + 1) % frames.length;
+        }
+        modCount++;
+    }
+
+    // Returns a frame that is no longer referenced to the pool
+    public void recycle(Analyzer.Frame frame) {
+        if (spareCount < spares.length) {
+            spares[spareCount++] = frame;
+        }
+    }
+
+    // Empties the ring, recycling every frame
+    public void reset() {
+        while (size > 0) {
+            recycle(frames[start]);
+            frames[start] = null;
+            start = (start + 1) % frames.length;
+            size--;
+        }
+        start = 0;
+        modCount++;
+    }
+
+}
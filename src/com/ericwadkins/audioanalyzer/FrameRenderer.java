@@ -0,0 +1,28 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.awt.*;
+
+/**
+ * A way of drawing frames. Every analyzed frame is passed to update() as it is produced, while render() is called
+ * at the display's own rate with the most recent frame, so views that accumulate frames see every one of them.
+ */
+public interface FrameRenderer {
+
+    // Called with every frame on the analysis thread, before the frame can be recycled
+    default void update(Analyzer.Frame frame) {
+    }
+
+    void render(Graphics2D g, Analyzer.Frame frame, int width, int height);
+
+    default void render(RenderTarget target, Analyzer.Frame frame) {
+        do {
+            Graphics2D g = target.begin();
+            try {
+                render(g, frame, target.getWidth(), target.getHeight());
+            } finally {
+                g.dispose();
+            }
+        } while (!target.end());
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the latest frame from the analysis thread to one display thread without locks. Frames are pooled and
+ * recycled by the analysis, so the slot copies each published frame into one of three frames of its own: one
+ * being written, one being drawn and one waiting in between, which are swapped atomically and never touched by
+ * both threads at once. Every published frame carries a sequence number, so the display can tell a new frame from
+ * the one it already drew, and count the frames it never saw.
+ */
+public class FrameSlot {
+
+    private static class Entry {
+        final Analyzer.Frame frame = new Analyzer.Frame();
+        volatile long sequence = 0;
+    }
+
+    private final AtomicReference<Entry> shared = new AtomicReference<>(new Entry());
+    private Entry back = new Entry(); // Owned by the publisher
+    private Entry front = new Entry(); // Owned by the consumer
+    private long published = 0;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong taken = new AtomicLong();
+
+    // Publisher: makes a copy of the frame the latest one, replacing any frame not taken yet
+    public void publish(Analyzer.Frame frame) {
+        back.frame.copyFrom(frame);
+        back.sequence = ++published;
+        back = shared.getAndSet(back);
+    }
+
+    // Consumer: returns the latest frame if it is newer than the last one taken, or null if nothing changed. The
+    // frame stays valid until the next call.
+    public Analyzer.Frame take() {
+        if (shared.get().sequence <= front.sequence) {
+            duplicates.incrementAndGet();
+            return null;
+        }
+        long last = front.sequence;
+        front = shared.getAndSet(front);
+        dropped.addAndGet(front.sequence - last - 1);
+        taken.incrementAndGet();
+        return front.frame;
+    }
+
+    // Consumer: the frame last returned by take, or null if there was none
+    public Analyzer.Frame current() {
+        return front.sequence == 0 ? null : front.frame;
+    }
+
+    // Sequence number of the frame last taken, 0 before the first
+    public long getSequence() {
+        return front.sequence;
+    }
+
+    // Number of frames taken
+    public long getTaken() {
+        return taken.get();
+    }
+
+    // Number of frames replaced by a newer one before they were taken
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Number of times take found no new frame
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+}
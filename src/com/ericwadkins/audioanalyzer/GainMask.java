@@ -0,0 +1,123 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-bin gain that combines Analyzer.logScale, the bass attenuation of Analyzer.scaleRange and the
+ * Analyzer.scaleSurrounding emphasis around each history frame's peak average in one stage.
+ *
+ * The static weights only depend on the spectrum length and are computed once per length. The emphasis around a
+ * history peak is at most 1 + 0.5^k - |center - bin| / slope, which only exceeds 1 within (0.5^k) * slope bins of
+ * the center, so each frame touches a handful of bins. Those bins are restored and re-weighted as frames enter and
+ * leave the history rather than rebuilding the whole mask.
+ *
+ * The factors are multiplied into each value one at a time in the order of the separate stages, oldest frame
+ * first, rather than folded into a single gain, so the output is bit for bit that of LogScale, ScaleRange and
+ * ScaleSurrounding. Most bins cost one or two multiplies, and only the bins near a history peak cost more.
+ */
+public class GainMask implements SpectrumStage {
+
+    private final double bassUpperBound;
+    private final double bassMult;
+    private final double slope;
+
+    private int length = -1;
+    private int bassBins;
+    private double[] logWeights = new double[0];
+
+    // The emphasis of the current history: per bin the first of its gains, each gain linked to the next for the
+    // same bin, in the order the stack applies them
+    private int[] head = new int[0];
+    private int[] tail = new int[0];
+    private double[] gains = new double[64];
+    private int[] next = new int[64];
+    private int gainCount = 0;
+
+    // Bins currently emphasised by the history, each once
+    private int[] touched = new int[64];
+    private int touchedCount = 0;
+
+    public GainMask(double bassUpperBound, double bassMult, double slope) {
+        this.bassUpperBound = bassUpperBound;
+        this.bassMult = bassMult;
+        this.slope = slope;
+    }
+
+    @Override
+    public void prepare(int length, List<Analyzer.Frame> stack) {
+        if (length != this.length) {
+            rebuild(length);
+        }
+
+        // Undo the emphasis of the previous history
+        for (int i = 0; i < touchedCount; i++) {
+            head[touched[i]] = -1;
+        }
+        touchedCount = 0;
+        gainCount = 0;
+
+        // Apply the emphasis of the current history, oldest frame first
+        int size = stack.size();
+        for (int j = 0; j < size; j++) {
+            int center = stack.get(j).peakAverage;
+            double mult = 1 + Math.pow(0.5, size - j);
+            int radius = (int) Math.ceil((mult - 1) * slope);
+            int from = Math.max(0, center - radius);
+            int to = Math.min(length - 1, center + radius);
+            for (int bin = from; bin <= to; bin++) {
+                double gain = mult - Math.abs(center - bin) / slope;
+                if (gain > 1) {
+                    addGain(bin, gain);
+                }
+            }
+        }
+    }
+
+    private void addGain(int bin, double gain) {
+        if (gainCount == gains.length) {
+            gains = Arrays.copyOf(gains, gains.length * 2);
+            next = Arrays.copyOf(next, next.length * 2);
+        }
+        gains[gainCount] = gain;
+        next[gainCount] = -1;
+        if (head[bin] < 0) {
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touched.length * 2);
+            }
+            touched[touchedCount++] = bin;
+            head[bin] = gainCount;
+        }
+        else {
+            next[tail[bin]] = gainCount;
+        }
+        tail[bin] = gainCount++;
+    }
+
+    private void rebuild(int length) {
+        this.length = length;
+        bassBins = (int) (bassUpperBound * length);
+        logWeights = new double[length];
+        head = new int[length];
+        tail = new int[length];
+        Arrays.fill(head, -1);
+        touchedCount = 0;
+        gainCount = 0;
+        for (int i = 0; i < length; i++) {
+            logWeights[i] = Math.max(0, Math.log(i * 2));
+        }
+    }
+
+    @Override
+    public double apply(int bin, double value) {
+        value = value * logWeights[bin];
+        if (bin < bassBins) {
+            value = value * bassMult;
+        }
+        for (int g = head[bin]; g >= 0; g = next[g]) {
+            value = value * gains[g];
+        }
+        return value;
+    }
+
+}
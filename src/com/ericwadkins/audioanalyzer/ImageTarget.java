@@ -0,0 +1,42 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Renders into an in-memory image, so rendering works without a screen, for example to benchmark it or to save
+ * frames to files.
+ */
+public class ImageTarget implements RenderTarget {
+
+    private final BufferedImage image;
+
+    public ImageTarget(int width, int height) {
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public Graphics2D begin() {
+        return image.createGraphics();
+    }
+
+    @Override
+    public boolean end() {
+        return true;
+    }
+
+}
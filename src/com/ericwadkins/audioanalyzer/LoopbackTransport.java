@@ -0,0 +1,214 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory link standing in for the device, so the output path can be tested and measured without one. What
+ * SerialComm writes comes out of getDeviceInputStream(), and what is written to getDeviceOutputStream() is what
+ * SerialComm reads.
+ *
+ * Each direction behaves like a serial line: a byte becomes readable on the other side only once the line has had
+ * time to carry it at the baud rate, ten bits per byte at 8N1, after the bytes written before it. A direction holds
+ * at most BUFFER_SIZE bytes, whether still on their way or arrived but not read, and writes block while it is full,
+ * as they would once a real port's buffers fill up. A baud rate of 0 delivers every byte at once.
+ */
+public class LoopbackTransport implements Transport {
+
+    public static final int BUFFER_SIZE = 64; // Bytes a direction holds, as in the Arduino's serial buffer
+
+    private final int baudRate;
+    private final Line toDevice;
+    private final Line fromDevice;
+
+    public LoopbackTransport(int baudRate) {
+        if (baudRate < 0) {
+            throw new IllegalArgumentException("Baud rate must not be negative");
+        }
+        this.baudRate = baudRate;
+        long nanosPerByte = baudRate == 0 ? 0 : TimeUnit.SECONDS.toNanos(SerialComm.BITS_PER_BYTE) / baudRate;
+        toDevice = new Line(nanosPerByte);
+        fromDevice = new Line(nanosPerByte);
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return fromDevice.input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return toDevice.output;
+    }
+
+    // What the device receives
+    public InputStream getDeviceInputStream() {
+        return toDevice.input;
+    }
+
+    // What the device sends back
+    public OutputStream getDeviceOutputStream() {
+        return fromDevice.output;
+    }
+
+    @Override
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    // Closes both directions, ending reads once what has arrived is read and failing further writes
+    @Override
+    public void close() {
+        toDevice.close();
+        fromDevice.close();
+    }
+
+    @Override
+    public String toString() {
+        return "loopback";
+    }
+
+    /**
+     * One direction: a ring of bytes, each with the time it arrives at the other end.
+     */
+    private static class Line {
+
+        private final long nanosPerByte;
+        private final byte[] bytes = new byte[BUFFER_SIZE];
+        private final long[] arrivals = new long[BUFFER_SIZE];
+        private int head = 0;
+        private int count = 0;
+        private long lastArrival = System.nanoTime(); // When the line is done carrying everything written
+        private boolean closed = false;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return Line.this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Line.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return Line.this.available();
+            }
+
+            @Override
+            public void close() {
+                Line.this.close();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                Line.this.write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Line.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Line.this.close();
+            }
+        };
+
+        Line(long nanosPerByte) {
+            this.nanosPerByte = nanosPerByte;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                while (count == bytes.length && !closed) {
+                    await(0);
+                }
+                if (closed) {
+                    throw new IOException("Line closed");
+                }
+                long now = System.nanoTime();
+                lastArrival = (now - lastArrival > 0 ? now : lastArrival) + nanosPerByte;
+                int tail = (head + count) % bytes.length;
+                bytes[tail] = b[off + i];
+                arrivals[tail] = lastArrival;
+                count++;
+            }
+            notifyAll();
+        }
+
+        // Blocks until at least one byte has arrived, then reads as many as have, or returns -1 once closed
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (count > 0) {
+                    long wait = arrivals[head] - System.nanoTime();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    await(wait);
+                }
+                else if (closed) {
+                    return -1;
+                }
+                else {
+                    await(0);
+                }
+            }
+            long now = System.nanoTime();
+            int read = 0;
+            while (read < len && count > 0 && arrivals[head] - now <= 0) {
+                b[off + read++] = bytes[head];
+                head = (head + 1) % bytes.length;
+                count--;
+            }
+            notifyAll();
+            return read;
+        }
+
+        synchronized int available() {
+            long now = System.nanoTime();
+            int arrived = 0;
+            while (arrived < count && arrivals[(head + arrived) % bytes.length] - now <= 0) {
+                arrived++;
+            }
+            return arrived;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        // Waits on the line for the given nanoseconds, or until notified if 0
+        private void await(long nanos) throws InterruptedIOException {
+            try {
+                if (nanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, nanos);
+                }
+                else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+}
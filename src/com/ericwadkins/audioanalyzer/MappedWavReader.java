@@ -0,0 +1,140 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Zero-copy reader for 16-bit mono PCM WAV files. The data chunk is memory-mapped and exposed as little endian
+ * ShortBuffer windows, so frames are analyzed straight from the page cache without being read, copied or decoded
+ * byte by byte, and any timestamp can be reached instantly.
+ *
+ * A single mapping is limited to 2 GB, so larger files are mapped in segments that overlap by the longest window
+ * the reader was opened for, which keeps every window inside one segment.
+ */
+public class MappedWavReader implements Closeable {
+
+    public static final long SEGMENT_BYTES = 1L << 30;
+    public static final int MAX_WINDOW = 1 << 20; // Longest window by default, 24 seconds at 44.1 kHz
+
+    private final FileChannel channel;
+    private final float sampleRate;
+    private final long sampleCount;
+    private final int maxWindow;
+    private final long segmentSamples;
+    private final ShortBuffer[] segments;
+
+    public MappedWavReader(File file) throws IOException {
+        this(file, MAX_WINDOW);
+    }
+
+    public MappedWavReader(File file, int maxWindow) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.maxWindow = maxWindow;
+        try {
+            // Walk the RIFF chunks for the format and the data
+            ByteBuffer header = read(0, 12);
+            if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) { // "RIFF" ... "WAVE"
+                throw new IllegalArgumentException("Not a WAV file: " + file);
+            }
+            long position = 12;
+            long dataOffset = -1;
+            long dataSize = 0;
+            int channels = 0;
+            int bits = 0;
+            int encoding = 0;
+            float rate = 0;
+            while (position + 8 <= channel.size() && dataOffset < 0) {
+                ByteBuffer chunk = read(position, 8);
+                int id = chunk.getInt(0);
+                long size = chunk.getInt(4) & 0xFFFFFFFFL;
+                if (id == 0x20746D66) { // "fmt "
+                    ByteBuffer format = read(position + 8, 16);
+                    encoding = format.getShort(0) & 0xFFFF;
+                    channels = format.getShort(2);
+                    rate = format.getInt(4);
+                    bits = format.getShort(14);
+                }
+                else if (id == 0x61746164) { // "data"
+                    dataOffset = position + 8;
+                    dataSize = Math.min(size, channel.size() - dataOffset);
+                }
+                position += 8 + size + (size & 1);
+            }
+            // 1 is PCM, 0xFFFE is WAVE_FORMAT_EXTENSIBLE which is PCM for 16-bit audio in practice
+            if ((encoding != 1 && encoding != 0xFFFE) || bits != 16 || channels != 1) {
+                throw new IllegalArgumentException("Only 16-bit mono PCM WAV files can be mapped: " + file);
+            }
+            if (dataOffset < 0) {
+                throw new IllegalArgumentException("No data chunk: " + file);
+            }
+            this.sampleRate = rate;
+            this.sampleCount = dataSize / 2;
+
+            // Map the data in overlapping segments
+            segmentSamples = SEGMENT_BYTES / 2;
+            int count = (int) Math.max(1, (sampleCount + segmentSamples - 1) / segmentSamples);
+            segments = new ShortBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long first = i * segmentSamples;
+                long length = Math.min(sampleCount - first, segmentSamples + maxWindow);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + first * 2,
+                        Math.max(0, length) * 2);
+                segments[i] = mapped.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IllegalArgumentException("Truncated WAV file");
+            }
+        }
+        return buffer;
+    }
+
+    public float getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    // Index of the sample at the given time
+    public long sampleAt(double seconds) {
+        return Math.max(0, Math.min(sampleCount, (long) (seconds * sampleRate)));
+    }
+
+    // A view of length samples starting at sample, which must lie within the file and be at most maxWindow long
+    public ShortBuffer window(long sample, int length) {
+        if (sample < 0 || length < 0 || sample + length > sampleCount) {
+            throw new IndexOutOfBoundsException("Window " + sample + "+" + length + " outside " + sampleCount);
+        }
+        if (length > maxWindow) {
+            throw new IllegalArgumentException("Window longer than " + maxWindow + " samples");
+        }
+        int segment = (int) (sample / segmentSamples);
+        ShortBuffer view = segments[segment].duplicate();
+        int offset = (int) (sample - segment * segmentSamples);
+        view.limit(offset + length).position(offset);
+        return view.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.ericwadkins.audioanalyzer;
+
+/**
+ * Finds the dominant peaks of a spectrum the same way Analyzer.analyze did with peakFilter, boxed lists and an
+ * insertion sort, but in linear time over primitive arrays. A bin is a peak when no bin within width of it is
+ * greater, which a monotonic deque answers in O(1) amortized per bin. Peaks above the bass range within 70% of the
+ * strongest one are kept, strongest first with ties in frequency order, and sorted with an in-place heap sort.
+ * Buffers are reused between calls, so a detector must not be shared between threads.
+ */
+public class PeakDetector {
+
+    public static final double PEAK_THRESHOLD = 0.7;
+
+    private final int width;
+    private final int maxPeaks;
+
+    private int[] deque = new int[0];
+    private int[] indices = new int[0];
+    private double[] values = new double[0];
+
+    public PeakDetector(int width) {
+        this(width, Integer.MAX_VALUE);
+    }
+
+    // Keeps at most maxPeaks of the strongest peaks
+    public PeakDetector(int width, int maxPeaks) {
+        this.width = width;
+        this.maxPeaks = maxPeaks;
+    }
+
+    // Returns the peaks of data above bassUpperBound (a fraction of the length), strongest first. The result is
+    // written into previous when it has the right length.
+    public int[] detect(double[] data, double bassUpperBound, int[] previous) {
+        int length = data.length;
+        if (deque.length < length) {
+            deque = new int[length];
+            indices = new int[length];
+            values = new double[length];
+        }
+        double lowerBound = (double) length * bassUpperBound;
+
+        // Local maxima above the bass range, using a deque of indices with decreasing values
+        int count = 0;
+        double maxPeakIntensity = 0.0;
+        int head = 0;
+        int tail = 0;
+        int next = 0;
+        for (int i = 0; i < length; i++) {
+            int right = Math.min(length - 1, i + width);
+            while (next <= right) {
+                while (tail > head && data[deque[tail - 1]] <= data[next]) {
+                    tail--;
+                }
+                deque[tail++] = next++;
+            }
+            while (deque[head] < i - width) {
+                head++;
+            }
+            double value = data[i];
+            if (data[deque[head]] <= value && value > 0 && i > lowerBound) {
+                indices[count] = i;
+                values[count] = value;
+                count++;
+                if (value > maxPeakIntensity) {
+                    maxPeakIntensity = value;
+                }
+            }
+        }
+
+        // Keep the peaks close to the strongest one
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (values[i] > PEAK_THRESHOLD * maxPeakIntensity) {
+                indices[kept] = indices[i];
+                values[kept] = values[i];
+                kept++;
+            }
+        }
+
+        sort(kept);
+
+        int size = Math.min(kept, maxPeaks);
+        int[] peaks = previous != null && previous.length == size ? previous : new int[size];
+        System.arraycopy(indices, 0, peaks, 0, size);
+        return peaks;
+    }
+
+    // Whether peak a comes before peak b: stronger first, then lower frequency
+    private boolean before(int a, int b) {
+        return values[a] > values[b] || values[a] == values[b] && indices[a] < indices[b];
+    }
+
+    // Heap sort keeping the last peak in order at the root, so the front of the array ends up strongest first
+    private void sort(int count) {
+        for (int i = count / 2 - 1; i >= 0; i--) {
+            siftDown(i, count);
+        }
+        for (int end = count - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    private void siftDown(int i, int count) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= count) {
+                return;
+            }
+            if (child + 1 < count && before(child, child + 1)) {
+                child++;
+            }
+            if (!before(i, child)) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int index = indices[a];
+        indices[a] = indices[b];
+        indices[b] = index;
+        double value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The one thread that redraws every open display. Each display is due at fixed times set by its own frame rate,
+ * counted from when it opened rather than from when its last redraw finished, so the rates never drift. The thread
+ * sleeps until the next display is due and redraws everything that is due by then in one pass.
+ *
+ * When redrawing falls behind, a display skips the redraws it missed and continues at its next due time instead
+ * of catching up with a burst, and the skipped redraws are counted. The thread is started with the first display
+ * and ends when the last one is closed.
+ */
+public class RenderScheduler {
+
+    private static final RenderScheduler instance = new RenderScheduler();
+
+    private final List<Display> displays = new ArrayList<>();
+    private Thread thread = null;
+
+    private RenderScheduler() {
+    }
+
+    public static RenderScheduler get() {
+        return instance;
+    }
+
+    synchronized void add(Display display) {
+        display.due = System.nanoTime();
+        displays.add(display);
+        if (thread == null) {
+            thread = new Thread(this::run, "Display renderer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        else {
+            wake();
+        }
+    }
+
+    // Wakes the thread early, so it notices new and closing displays
+    synchronized void wake() {
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void run() {
+        List<Display> due = new ArrayList<>();
+        List<Display> closed = new ArrayList<>();
+        while (true) {
+            long next = Long.MAX_VALUE;
+            long now = System.nanoTime();
+            boolean empty;
+            synchronized (this) {
+                for (int i = displays.size() - 1; i >= 0; i--) {
+                    Display display = displays.get(i);
+                    if (display.isClosing()) {
+                        displays.remove(i);
+                        closed.add(display);
+                    }
+                    else if (now - display.due >= 0) {
+                        due.add(display);
+                    }
+                    else {
+                        next = Math.min(next, display.due);
+                    }
+                }
+                empty = displays.isEmpty();
+                if (empty) {
+                    thread = null;
+                }
+            }
+            for (Display display : closed) {
+                display.dispose();
+            }
+            closed.clear();
+            if (empty) {
+                return;
+            }
+
+            // Redraw everything that is due, then flush the drawing to the screen at once
+            boolean rendered = false;
+            for (Display display : due) {
+                rendered |= display.render();
+            }
+            if (rendered) {
+                Toolkit.getDefaultToolkit().sync();
+            }
+
+            // Move each display to its next due time, skipping the ones that have already passed
+            now = System.nanoTime();
+            for (Display display : due) {
+                display.due += display.getPeriod();
+                if (now - display.due >= 0) {
+                    long missed = (now - display.due) / display.getPeriod() + 1;
+                    display.skipped += missed;
+                    display.due += missed * display.getPeriod();
+                }
+                next = Math.min(next, display.due);
+            }
+            due.clear();
+
+            if (next != Long.MAX_VALUE) {
+                LockSupport.parkNanos(this, next - System.nanoTime());
+            }
+        }
+    }
+
+}
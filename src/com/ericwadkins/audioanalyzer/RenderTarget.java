@@ -0,0 +1,21 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.awt.*;
+
+/**
+ * A surface frames are drawn onto. A frame is drawn between begin() and end(), and drawn again if end() reports
+ * that the contents were lost before they could be shown.
+ */
+public interface RenderTarget {
+
+    int getWidth();
+
+    int getHeight();
+
+    // Returns the graphics to draw the next frame with, which the caller disposes
+    Graphics2D begin();
+
+    // Shows the frame, returning false if it was lost and has to be drawn again
+    boolean end();
+
+}
@@ -0,0 +1,99 @@
+package com.ericwadkins.audioanalyzer;
+
+import gnu.io.CommPort;
+import gnu.io.CommPortIdentifier;
+import gnu.io.SerialPort;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A serial port opened through RXTX at 8N1, such as the Arduino's USB serial port. RXTX is only loaded when one of
+ * these is created, so the other transports run without it.
+ */
+public class RxtxTransport implements Transport {
+
+    public static final int OPEN_TIMEOUT = 2000; // Milliseconds to wait for the port
+
+    private final String portName;
+    private final int baudRate;
+
+    private CommPort port = null;
+    private InputStream in = null;
+    private OutputStream out = null;
+
+    public RxtxTransport(String portName, int baudRate) {
+        this.portName = portName;
+        this.baudRate = baudRate;
+    }
+
+    @Override
+    public void open() throws IOException {
+        System.out.println("Connecting to " + portName);
+        CommPortIdentifier portIdentifier = null;
+        try {
+            portIdentifier = CommPortIdentifier.getPortIdentifier(portName);
+        } catch (gnu.io.NoSuchPortException e) {
+            throw new IllegalArgumentException("No such port");
+        }
+        if (portIdentifier.isCurrentlyOwned()) {
+            throw new IllegalStateException("Port is currently in use");
+        }
+        try {
+            CommPort commPort = portIdentifier.open(SerialComm.class.getName(), OPEN_TIMEOUT);
+            port = commPort;
+            if (commPort instanceof SerialPort) {
+                SerialPort serialPort = (SerialPort) commPort;
+                serialPort.setSerialPortParams(baudRate,
+                        SerialPort.DATABITS_8, SerialPort.STOPBITS_1, SerialPort.PARITY_NONE);
+
+                in = serialPort.getInputStream();
+                out = serialPort.getOutputStream();
+            }
+            else {
+                close();
+                throw new IllegalArgumentException("Not a serial port");
+            }
+        } catch (gnu.io.PortInUseException | gnu.io.UnsupportedCommOperationException e) {
+            close();
+            throw new IOException("Failed to open " + portName, e);
+        }
+        System.out.println("Connected with baud rate " + baudRate);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        if (in != null) {
+            return in;
+        }
+        throw new IllegalStateException("A connection has not been established yet.");
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        if (out != null) {
+            return out;
+        }
+        throw new IllegalStateException("A connection has not been established yet.");
+    }
+
+    @Override
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    @Override
+    public void close() {
+        if (port != null) {
+            port.close();
+            port = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return portName;
+    }
+
+}
@@ -0,0 +1,109 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Short-time Fourier transform over a circular buffer of 16-bit mono PCM samples. Captured audio is written in
+ * hop-sized pieces and a spectrum of the most recent window is produced every hop, so consecutive frames overlap
+ * by windowSize - hopSize samples.
+ */
+public class STFT implements SpectrumSource {
+
+    public enum Window {
+        RECTANGULAR, HANN, HAMMING;
+
+        public double[] create(int size) {
+            double[] window = new double[size];
+            for (int i = 0; i < size; i++) {
+                double phase = 2 * Math.PI * i / size;
+                switch (this) {
+                    case HANN:
+                        window[i] = 0.5 - 0.5 * Math.cos(phase);
+                        break;
+                    case HAMMING:
+                        window[i] = 0.54 - 0.46 * Math.cos(phase);
+                        break;
+                    default:
+                        window[i] = 1.0;
+                }
+            }
+            return window;
+        }
+    }
+
+    private final int windowSize;
+    private final int hopSize;
+    private final double[] window;
+    private final double[] ring;
+    private final double[] windowed;
+
+    private int position = 0;
+    private long written = 0;
+    private long lastFrame = 0;
+
+    public STFT(int windowSize, int hopSize, Window window) {
+        if (hopSize <= 0 || hopSize > windowSize) {
+            throw new IllegalArgumentException("Hop size must be in the range 1-" + windowSize);
+        }
+        this.windowSize = windowSize;
+        this.hopSize = hopSize;
+        this.window = window.create(windowSize);
+        this.ring = new double[windowSize];
+        this.windowed = new double[windowSize];
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    @Override
+    public int bins() {
+        return windowSize / 2;
+    }
+
+    // Appends samples to the circular buffer
+    @Override
+    public void write(byte[] signal, int offset, int length) {
+        for (int i = offset; i + 1 < offset + length; i += 2) {
+            add((double) ((signal[i] & 0xFF) | (signal[i + 1] << 8)) / 32768.0F);
+        }
+    }
+
+    @Override
+    public void write(ShortBuffer samples) {
+        for (int i = samples.position(); i < samples.limit(); i++) {
+            add((double) samples.get(i) / 32768.0F);
+        }
+    }
+
+    private void add(double sample) {
+        ring[position] = sample;
+        position = position + 1 == windowSize ? 0 : position + 1;
+        written++;
+    }
+
+    // Whether the buffer is full and at least one hop has been written since the last frame
+    @Override
+    public boolean ready() {
+        return written >= windowSize && written - lastFrame >= hopSize;
+    }
+
+    @Override
+    public void frame(double[] spectrum) {
+        // The oldest sample is at the write position
+        int first = windowSize - position;
+        for (int i = 0; i < first; i++) {
+            windowed[i] = ring[position + i] * window[i];
+        }
+        for (int i = first; i < windowSize; i++) {
+            windowed[i] = ring[i - first] * window[i];
+        }
+        FFT.realMagnitudes(windowed, spectrum);
+        lastFrame = written;
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free ring of fixed-size PCM blocks between one capture thread and one analysis thread. The producer fills a
+ * claimed slot in place and publishes it; the consumer copies the oldest block out. When the ring is full the
+ * producer either drops the oldest block or waits for the consumer, depending on the policy.
+ *
+ * Dropping the oldest block moves the read position from the producer side, so the consumer copies a block first
+ * and only then claims it with a compare-and-set. If the producer dropped the block in the meantime the copy is
+ * discarded and the consumer moves on to the next block.
+ */
+public class SampleRing {
+
+    public enum Policy {
+        DROP_OLDEST, // The capture thread never waits, overruns lose the oldest audio
+        BLOCK // The capture thread waits for space, nothing is lost but the line may overrun instead
+    }
+
+    private static final long WAIT_NANOS = 100_000;
+
+    private final byte[][] blocks;
+    private final int[] lengths;
+    private final Policy policy;
+
+    private final AtomicLong head = new AtomicLong(); // Next block to read
+    private final AtomicLong tail = new AtomicLong(); // Next block to write
+
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile Thread waitingConsumer = null;
+
+    public SampleRing(int slots, int blockSize, Policy policy) {
+        if (slots < 2) {
+            throw new IllegalArgumentException("A ring needs at least 2 slots");
+        }
+        this.blocks = new byte[slots][blockSize];
+        this.lengths = new int[slots];
+        this.policy = policy;
+    }
+
+    public int getBlockSize() {
+        return blocks[0].length;
+    }
+
+    // Producer: returns the slot to fill next, making room first if the ring is full
+    public byte[] claim() throws InterruptedException {
+        long t = tail.get();
+        long h = head.get();
+        if (t - h >= blocks.length) {
+            overruns.incrementAndGet();
+            if (policy == Policy.DROP_OLDEST) {
+                while (t - h >= blocks.length) {
+                    if (head.compareAndSet(h, h + 1)) {
+                        dropped.incrementAndGet();
+                    }
+                    h = head.get();
+                }
+            }
+            else {
+                while (t - head.get() >= blocks.length) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    LockSupport.parkNanos(WAIT_NANOS);
+                }
+            }
+        }
+        return blocks[(int) (t % blocks.length)];
+    }
+
+    // Producer: makes the claimed slot, holding length bytes, visible to the consumer
+    public void publish(int length) {
+        long t = tail.get();
+        lengths[(int) (t % blocks.length)] = length;
+        tail.set(t + 1);
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    // Consumer: copies the oldest block into dest and returns its length, or returns -1 if the ring is empty
+    public int poll(byte[] dest) {
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return -1;
+            }
+            int slot = (int) (h % blocks.length);
+            int length = lengths[slot];
+            System.arraycopy(blocks[slot], 0, dest, 0, length);
+            if (head.compareAndSet(h, h + 1)) {
+                return length;
+            }
+        }
+    }
+
+    // Consumer: like poll, but waits for a block, counting an underrun if it had to
+    public int take(byte[] dest) throws InterruptedException {
+        int length = poll(dest);
+        if (length >= 0) {
+            return length;
+        }
+        underruns.incrementAndGet();
+        waitingConsumer = Thread.currentThread();
+        try {
+            while ((length = poll(dest)) < 0) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.parkNanos(this, WAIT_NANOS);
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+        return length;
+    }
+
+    // Number of blocks waiting to be read
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    // Number of times the producer found the ring full
+    public long getOverruns() {
+        return overruns.get();
+    }
+
+    // Number of times the consumer had to wait for a block
+    public long getUnderruns() {
+        return underruns.get();
+    }
+
+    // Number of blocks dropped to make room, always 0 with the BLOCK policy
+    public long getDropped() {
+        return dropped.get();
+    }
+
+}
@@ -1,121 +1,634 @@
 package com.ericwadkins.audioanalyzer;
 
-import gnu.io.CommPort;
-import gnu.io.CommPortIdentifier;
-import gnu.io.SerialPort;
-
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Created by ericwadkins on 10/5/16.
+ *
+ * Color changes are not queued: a change sent while the line is busy is merged into the one change waiting for
+ * the line, so the latest hue, saturation and brightness go out together as soon as the line is free, and the
+ * states in between are dropped instead of being played late. Writes are paced to what the line can carry, ten
+ * bits per byte at 8N1, so nothing piles up in the driver either. Other packets go through a bounded queue and are
+ * dropped when it is full.
+ *
+ * The device is reached through a Transport, the Arduino's serial port by default, so the same path can be driven
+ * over a pseudo-terminal or an in-memory loopback, which main() uses to measure it without a device.
+ *
+ * What the device sends back is parsed by a TelemetryParser. Acknowledgements give the round trip time of each
+ * packet and, once the device sends them, limit the packets on their way to IN_FLIGHT_LIMIT, so its buffer cannot
+ * overflow however slow it is. When the device reports dropped packets, writes are slowed to half the pace, down to
+ * a sixteenth of the line, and each acknowledgement then brings the pace back up a little. A device that never
+ * acknowledges is only paced to the line.
+ *
+ * Several zones, such as several LED strips, are driven with ZoneEvents, whose changes are coalesced per zone and
+ * sent as differences from what each zone was last sent, in packets of up to ZoneCodec.MAX_ENTRIES zones. When the
+ * device drops packets, every zone is sent again in full.
  */
 public class SerialComm {
 
-    private final String portName;
-    private final int baudRate;
-    private final BlockingQueue<byte[]> outgoing = new LinkedBlockingQueue<>();
+    public static final int QUEUE_CAPACITY = 64; // Packets other than color changes waiting for the line
+    public static final int BITS_PER_BYTE = 10; // A start bit, 8 data bits and a stop bit
+    public static final int DEVICE_FPS = 30; // Frames the simulated device of main() shows a second
+    public static final int DEVICE_ACK_INTERVAL = 4; // Packets the simulated device acknowledges at once
+
+    public static final int IN_FLIGHT_LIMIT = 8; // Packets sent but not acknowledged, once the device acknowledges
+    public static final long ACK_TIMEOUT_NANOS = 250_000_000L; // Wait for an ack before pacing to the line alone
+    public static final double MAX_SLOWDOWN = 16.0; // Most writes are slowed by when the device drops packets
+    public static final double RECOVERY = 0.995; // Slowdown kept with every acknowledgement
+    public static final int RESTART_GAP = 256; // Packets a count must fall by to mean the device restarted
+
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+    private static final int SENT_TIMES = 256; // Send times kept for matching acknowledgements, a power of two
+    private static final int READ_SIZE = 256;
+
+    private final Transport transport;
+    private final BlockingQueue<byte[]> outgoing = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    // The color change waiting for the line, guarded by the lock
+    private final Object lock = new Object();
+    private final Analyzer.FrameEvent pending = new Analyzer.FrameEvent();
+    private boolean hasPending = false;
+    private ZoneEvent pendingZones = null; // The zone changes waiting, created with the first
+    private ZoneCodec zoneCodec = null;
+    private volatile boolean resyncZones = false; // Set when the device drops packets, whose zone changes are lost
 
-    private InputStream in = null;
-    private OutputStream out = null;
+    private Thread reader = null;
+    private Thread writer = null;
 
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile double bytesPerSecond = 0;
+
+    // What the device reports, written by the reader only
+    private final TelemetryParser parser = new TelemetryParser(new Feedback());
+    private final AtomicLongArray sentTimes = new AtomicLongArray(SENT_TIMES); // By packet number
+    private volatile boolean acknowledging = false;
+    private volatile long acknowledged = 0;
+    private long countOffset = 0; // Packets sent before the device last restarted its count
+    private volatile long roundTrip = 0; // Smoothed, in nanoseconds
+    private volatile long minRoundTrip = 0;
+    private volatile long renderLatency = 0; // Smoothed, from sending a packet to the device showing it
+    private volatile long deviceDropped = 0;
+    private volatile long rendered = 0;
+    private volatile long lastRenderMicros = 0;
+    private volatile double slowdown = 1.0;
+
+    // Talks to a serial port through RXTX
     public SerialComm(String portName, int baudRate) {
-        this.portName = portName;
-        this.baudRate = baudRate;
+        this(new RxtxTransport(portName, baudRate));
     }
 
-    /*public static void main(String[] args) {
-        SerialComm comm = new SerialComm("/dev/cu.usbmodem1421", 9600);
-        comm.start();
-    }*/
+    public SerialComm(Transport transport) {
+        this.transport = transport;
+    }
 
-    public void connect(String portName, int baudRate) throws Exception {
-        System.out.println("Connecting to " + portName);
-        CommPortIdentifier portIdentifier = null;
-        try {
-            portIdentifier = CommPortIdentifier.getPortIdentifier(portName);
-        } catch (gnu.io.NoSuchPortException e) {
-            throw new IllegalArgumentException("No such port");
-        }
-        if (portIdentifier.isCurrentlyOwned()) {
-            throw new IllegalStateException("Port is currently in use");
-        }
-        else {
-            CommPort commPort = portIdentifier.open(this.getClass().getName(), 2000);
+    public Transport getTransport() {
+        return transport;
+    }
 
-            if (commPort instanceof SerialPort) {
-                SerialPort serialPort = (SerialPort) commPort;
-                serialPort.setSerialPortParams(baudRate,
-                        SerialPort.DATABITS_8, SerialPort.STOPBITS_1,SerialPort.PARITY_NONE);
+    // Usage: SerialComm [baud rate] [changes per second] [seconds] [packets the device shows per frame]
+    // Sends a steady stream of color changes over a loopback line to a simulated device, which acknowledges every
+    // DEVICE_ACK_INTERVAL packets and reports each frame it shows at DEVICE_FPS. Reports the throughput, the latency
+    // from sending a change to the device having it, and what the device reported, and checks that every packet was
+    // acknowledged and, unless the device was limited to a number of packets per frame and dropped the rest, that it
+    // ended on the last state sent.
+    public static void main(String[] args) throws Exception {
+        int baudRate = args.length > 0 ? Integer.parseInt(args[0]) : 9600;
+        int rate = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+        int perFrame = args.length > 3 ? Integer.parseInt(args[3]) : 0;
 
-                in = serialPort.getInputStream();
-                out = serialPort.getOutputStream();
+        LoopbackTransport loopback = new LoopbackTransport(baudRate);
+        SerialComm comm = new SerialComm(loopback);
+        comm.start();
+
+        // Every change sets the next hue, so a hue the device receives tells which change it came from
+        AtomicLongArray sentAt = new AtomicLongArray(360);
+        int[] state = {-1, -1, -1};
+        long[] latencies = {0, 0, 0}; // Count, total and maximum in nanoseconds
+        AtomicInteger received = new AtomicInteger();
+        AtomicInteger frame = new AtomicInteger(); // Packets received since the last frame shown
+        AtomicInteger deviceDropped = new AtomicInteger();
+        OutputStream reply = loopback.getDeviceOutputStream();
+        Thread device = new Thread(() -> {
+            InputStream in = loopback.getDeviceInputStream();
+            ByteBuffer packets = ByteBuffer.allocate(LoopbackTransport.BUFFER_SIZE);
+            ByteBuffer message = ByteBuffer.allocate(TelemetryParser.MAX_PAYLOAD + 4);
+            Analyzer.FrameEvent event = new Analyzer.FrameEvent();
+            try {
+                int read;
+                while ((read = in.read(packets.array(), packets.position(), packets.remaining())) >= 0) {
+                    long now = System.nanoTime();
+                    packets.position(packets.position() + read);
+                    packets.flip();
+                    while (EventCodec.decode(packets, event) > 0) {
+                        message.clear();
+                        int count = received.incrementAndGet();
+                        if (count % DEVICE_ACK_INTERVAL == 0) {
+                            TelemetryParser.writeAck(message, count);
+                        }
+                        boolean drop = perFrame > 0 && frame.incrementAndGet() > perFrame;
+                        if (drop) {
+                            TelemetryParser.writeDropped(message, deviceDropped.incrementAndGet());
+                        }
+                        synchronized (reply) {
+                            reply.write(message.array(), 0, message.position());
+                        }
+                        if (drop) {
+                            continue;
+                        }
+                        int type = event.getType();
+                        if ((type & EventCodec.HUE_CHANGE) != 0) {
+                            state[0] = event.getHue();
+                            long latency = now - sentAt.get(state[0]);
+                            latencies[0]++;
+                            latencies[1] += latency;
+                            latencies[2] = Math.max(latencies[2], latency);
+                        }
+                        if ((type & EventCodec.SATURATION_CHANGE) != 0) {
+                            state[1] = event.getSaturation();
+                        }
+                        if ((type & EventCodec.BRIGHTNESS_CHANGE) != 0) {
+                            state[2] = event.getBrightness();
+                        }
+                    }
+                    packets.compact();
+                }
+            } catch (IOException e) {
+                // Closed while replying
+            }
+        }, "Device");
+        Thread display = new Thread(() -> {
+            ByteBuffer message = ByteBuffer.allocate(TelemetryParser.MAX_PAYLOAD + 4);
+            long start = System.nanoTime();
+            long period = 1_000_000_000L / DEVICE_FPS;
+            try {
+                for (long due = start + period; !Thread.interrupted(); due += period) {
+                    LockSupport.parkNanos(due - System.nanoTime());
+                    frame.set(0);
+                    message.clear();
+                    TelemetryParser.writeRendered(message, (System.nanoTime() - start) / 1000, received.get());
+                    synchronized (reply) {
+                        reply.write(message.array(), 0, message.position());
+                    }
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }, "Device display");
+        device.start();
+        display.start();
 
+        long period = 1_000_000_000L / rate;
+        long start = System.nanoTime();
+        long end = start + (long) (seconds * 1e9);
+        int[] last = {0, 0, 0};
+        int changes = 0;
+        for (long due = start; due - end < 0; due += period) {
+            LockSupport.parkNanos(due - System.nanoTime());
+            Analyzer.FrameEvent event = new Analyzer.FrameEvent();
+            last[0] = changes % 360;
+            event.changeHue(last[0]);
+            if (changes % 3 == 0) {
+                last[1] = changes / 3 % 101;
+                event.changeSaturation(last[1]);
             }
-            else {
-                throw new IllegalArgumentException("Not a serial port");
+            if (changes % 5 == 0) {
+                last[2] = changes / 5 % 101;
+                event.changeBrightness(last[2]);
             }
+            sentAt.set(last[0], System.nanoTime());
+            comm.send(event);
+            changes++;
         }
-        System.out.println("Connected with baud rate " + baudRate);
-    }
+        double elapsed = (System.nanoTime() - start) / 1e9;
 
-    private InputStream getInputStream() {
-        if (in != null) {
-            return in;
+        // Let the line finish carrying the last change before closing it
+        while (comm.getQueueDepth() > 0) {
+            Thread.sleep(1);
         }
-        throw new IllegalStateException("A connection has not been established yet.");
-    }
+        Thread.sleep(Math.max(10, 1000L * LoopbackTransport.BUFFER_SIZE / (long) comm.getCapacity()));
+        comm.stop();
+        display.interrupt();
+        device.join();
+        display.join();
 
-    private OutputStream getOutputStream() {
-        if (out != null) {
-            return out;
+        System.out.println(String.format(Locale.ROOT,
+                "%d changes in %.1f s at %d baud: %d packets, %d bytes, %.0f B/s of %.0f B/s, %d coalesced",
+                changes, elapsed, baudRate, comm.getPacketsSent(), comm.getBytesSent(),
+                comm.getBytesSent() / elapsed, comm.getCapacity(), comm.getCoalesced()));
+        System.out.println(String.format(Locale.ROOT, "Latency: %.2f ms mean, %.2f ms max over %d hues received",
+                latencies[1] / 1e6 / Math.max(1, latencies[0]), latencies[2] / 1e6, latencies[0]));
+        System.out.println(String.format(Locale.ROOT, "Device: %d packets acknowledged, %.2f ms round trip (%.2f ms "
+                        + "min), %d frames shown %.2f ms after sending, %d packets dropped, slowed %.2f times",
+                comm.getAcknowledged(), comm.getRoundTripNanos() / 1e6, comm.getMinRoundTripNanos() / 1e6,
+                comm.getRendered(), comm.getRenderLatencyNanos() / 1e6, comm.getDeviceDropped(), comm.getSlowdown()));
+        if (comm.getAcknowledged() != comm.getPacketsSent() || comm.getTelemetryCorrupt() > 0) {
+            throw new IllegalStateException(comm.getAcknowledged() + " of " + comm.getPacketsSent()
+                    + " packets acknowledged, " + comm.getTelemetryCorrupt() + " corrupt messages");
         }
-        throw new IllegalStateException("A connection has not been established yet.");
+        if (deviceDropped.get() > 0) {
+            return;
+        }
+        if (!Arrays.equals(state, last)) {
+            throw new IllegalStateException("Device ended on " + Arrays.toString(state) + " instead of "
+                    + Arrays.toString(last));
+        }
+        System.out.println("Device ended on the last state sent " + Arrays.toString(last));
     }
 
     public void start() throws Exception {
-        connect(portName, baudRate);
-
-        final InputStream in = getInputStream();
-        final OutputStream out = getOutputStream();
+        transport.open();
+        start(transport.getInputStream(), transport.getOutputStream());
+    }
 
-        Thread reader = new Thread(() -> {
-            BufferedReader br = new BufferedReader(new InputStreamReader(in));
-            String line;
+    // Starts the reader and writer on already open streams
+    void start(final InputStream in, final OutputStream out) {
+        reader = new Thread(() -> {
+            byte[] buffer = new byte[READ_SIZE];
+            int read;
             try {
-                while ((line = br.readLine()) != null) {
-                    try {
-                        System.out.println(line);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                while ((read = in.read(buffer)) >= 0) {
+                    parser.feed(buffer, 0, read);
                 }
-            } catch (IOException e2) {
-                e2.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         });
 
-        Thread writer = new Thread(() -> {
+        writer = new Thread(() -> {
+            int baudRate = transport.getBaudRate();
+            long nanosPerByte = baudRate == 0 ? 0 : TimeUnit.SECONDS.toNanos(BITS_PER_BYTE) / baudRate;
+            long free = System.nanoTime(); // When the line has sent everything written so far
+            long lastSent = free;
+            long windowStart = free;
+            long windowBytes = 0;
+            // Color changes are encoded here rather than into a new array each
+            ByteBuffer packet = ByteBuffer.allocate(Math.max(EventCodec.MAX_LENGTH, ZoneCodec.MAX_LENGTH));
             while (true) {
                 try {
-                    byte[] bytes = outgoing.take();
-                    out.write(bytes);
+                    // Wait for the line first, so whatever is taken next is as recent as possible
+                    long wait = free - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(this, wait);
+                        if (Thread.interrupted()) {
+                            break;
+                        }
+                        continue;
+                    }
+                    // Then for the device, if enough packets are on their way and it has not gone quiet
+                    long sent = packetsSent.get();
+                    if (acknowledging && sent - acknowledged >= IN_FLIGHT_LIMIT) {
+                        wait = lastSent + ACK_TIMEOUT_NANOS - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(this, wait);
+                            if (Thread.interrupted()) {
+                                break;
+                            }
+                            continue;
+                        }
+                        acknowledging = false;
+                    }
+                    byte[] bytes = next(packet);
+                    int length = bytes != null ? bytes.length : packet.position();
+                    lastSent = System.nanoTime();
+                    sentTimes.set((int) (sent + 1) & (SENT_TIMES - 1), lastSent);
+                    packetsSent.incrementAndGet();
+                    out.write(bytes != null ? bytes : packet.array(), 0, length);
                     out.flush();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+
+                    long now = System.nanoTime();
+                    free = Math.max(free, now) + (long) (length * nanosPerByte * slowdown);
+                    bytesSent.addAndGet(length);
+                    windowBytes += length;
+                    if (now - windowStart >= RATE_WINDOW_NANOS) {
+                        bytesPerSecond = windowBytes * 1e9 / (now - windowStart);
+                        windowStart = now;
+                        windowBytes = 0;
+                    }
+                } catch (InterruptedException | InterruptedIOException e) {
+                    break;
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
         });
 
+        // Neither thread keeps the program running: closing a pty or FIFO does not end a read already blocked on it
+        reader.setDaemon(true);
+        writer.setDaemon(true);
         reader.start();
         writer.start();
     }
 
+    // Waits for the next packet: returns a queued packet first, or else encodes the waiting color change, or the
+    // waiting zone changes that fit in a packet, into the buffer and returns null
+    private byte[] next(ByteBuffer packet) throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                byte[] bytes = outgoing.poll();
+                if (bytes != null) {
+                    return bytes;
+                }
+                if (hasPending) {
+                    hasPending = false;
+                    packet.clear();
+                    EventCodec.encode(pending, packet);
+                    return null;
+                }
+                if (pendingZones != null && resyncZones) {
+                    resyncZones = false;
+                    zoneCodec.resync(pendingZones);
+                }
+                if (pendingZones != null && !pendingZones.isEmpty()) {
+                    packet.clear();
+                    zoneCodec.encode(pendingZones, packet);
+                    return null;
+                }
+                lock.wait();
+            }
+        }
+    }
+
+    // Sends a packet as is, or drops it if too many are waiting
     public void send(byte[] bytes) {
-        outgoing.add(bytes);
+        synchronized (lock) {
+            if (!outgoing.offer(bytes)) {
+                dropped.incrementAndGet();
+            }
+            lock.notify();
+        }
+    }
+
+    // Sends the changes of an event, merged into any change still waiting for the line
+    public void send(Analyzer.FrameEvent event) {
+        int type = event.getType();
+        if (type == 0) {
+            return;
+        }
+        synchronized (lock) {
+            if (hasPending) {
+                coalesced.incrementAndGet();
+            }
+            else {
+                pending.clear();
+            }
+            pending.merge(event);
+            hasPending = true;
+            lock.notify();
+        }
+    }
+
+    // Sends the changes of several zones, merged into any changes of theirs still waiting for the line. Each zone
+    // is sent as a difference from what was last sent to it, in as few packets as fit them all.
+    public void send(ZoneEvent event) {
+        if (event.isEmpty()) {
+            return;
+        }
+        synchronized (lock) {
+            if (pendingZones == null || pendingZones.getZones() != event.getZones()) {
+                pendingZones = new ZoneEvent(event.getZones());
+                zoneCodec = new ZoneCodec(event.getZones());
+            }
+            coalesced.addAndGet(pendingZones.merge(event));
+            lock.notify();
+        }
+    }
+
+    // Nominal capacity of the line in bytes per second, infinite if it is not limited
+    public double getCapacity() {
+        int baudRate = transport.getBaudRate();
+        return baudRate == 0 ? Double.POSITIVE_INFINITY : (double) baudRate / BITS_PER_BYTE;
+    }
+
+    // Bytes per second written over the last second or so
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    // Packets waiting for the line, counting a waiting color change as one, and waiting zone changes as the packets
+    // they need at most
+    public int getQueueDepth() {
+        synchronized (lock) {
+            int zones = pendingZones == null ? 0 : pendingZones.count();
+            return outgoing.size() + (hasPending ? 1 : 0) + (zones + ZoneCodec.MAX_ENTRIES - 1) / ZoneCodec.MAX_ENTRIES;
+        }
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    // Number of color changes, or zone changes, merged into a newer one before they were sent
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    // Number of packets dropped because the queue was full
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Whether the device is acknowledging packets, and has not gone quiet since
+    public boolean isAcknowledging() {
+        return acknowledging;
+    }
+
+    // Packets the device has acknowledged
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    // Packets sent and not acknowledged yet
+    public long getInFlight() {
+        return acknowledging ? packetsSent.get() - acknowledged : 0;
+    }
+
+    // Smoothed time from sending a packet to its acknowledgement, in nanoseconds, 0 before the first
+    public long getRoundTripNanos() {
+        return roundTrip;
+    }
+
+    public long getMinRoundTripNanos() {
+        return minRoundTrip;
+    }
+
+    // Smoothed time from sending a packet to the device reporting a frame showing it, in nanoseconds
+    public long getRenderLatencyNanos() {
+        return renderLatency;
+    }
+
+    // Packets the device reported dropping
+    public long getDeviceDropped() {
+        return deviceDropped;
+    }
+
+    // Frames the device reported showing, and the device time of the last, in microseconds
+    public long getRendered() {
+        return rendered;
+    }
+
+    public long getLastRenderMicros() {
+        return lastRenderMicros;
+    }
+
+    // How many times slower than the line writes are paced, 1 unless the device has been dropping packets
+    public double getSlowdown() {
+        return slowdown;
+    }
+
+    // Messages from the device dropped for a bad checksum or length
+    public long getTelemetryCorrupt() {
+        return parser.getCorrupt();
+    }
+
+    // Stops the writer, dropping anything not sent yet, and closes the transport. The reader ends with the transport
+    // where closing ends a blocked read, and otherwise waits on as a daemon until the program exits.
+    public void stop() {
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                writer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            transport.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println(String.format(Locale.ROOT, "Serial comm on %s: %d packets, %d bytes, %d coalesced, "
+                        + "%d dropped; %d acknowledged, %.2f ms round trip, %d dropped by the device",
+                transport, getPacketsSent(), getBytesSent(), getCoalesced(), getDropped(), getAcknowledged(),
+                getRoundTripNanos() / 1e6, getDeviceDropped()));
+    }
+
+    // Takes a count the device sends as its low 16 bits back to the full count, at most the packets sent
+    private long unwrap(int count) {
+        long sent = packetsSent.get();
+        return sent - ((sent - countOffset - count) & 0xFFFF);
+    }
+
+    // Time from sending a packet to now, or -1 if its send time is no longer kept
+    private long since(long packet, long now) {
+        if (packet <= 0 || packetsSent.get() - packet >= SENT_TIMES) {
+            return -1;
+        }
+        return now - sentTimes.get((int) packet & (SENT_TIMES - 1));
+    }
+
+    // Smooths a time the way TCP smooths its round trip time, by an eighth of each new sample
+    private static long smooth(long smoothed, long sample) {
+        return smoothed == 0 ? sample : smoothed + (sample - smoothed) / 8;
+    }
+
+    /**
+     * Applies what the device reports, on the reader thread.
+     */
+    private class Feedback implements TelemetryParser.Listener {
+
+        private long lastSlowed = 0;
+        private int droppedReport = 0; // Last count of drops the device sent
+
+        @Override
+        public void acknowledged(int received) {
+            long now = System.nanoTime();
+            if (restarted(received)) {
+                return;
+            }
+            long count = unwrap(received);
+            if (acknowledge(count)) {
+                long roundTrip = since(count, now);
+                if (roundTrip >= 0) {
+                    SerialComm.this.roundTrip = smooth(SerialComm.this.roundTrip, roundTrip);
+                    minRoundTrip = minRoundTrip == 0 ? roundTrip : Math.min(minRoundTrip, roundTrip);
+                }
+            }
+        }
+
+        // A burst of drops slows the pace once, like a loss in TCP, and only a round trip later again
+        @Override
+        public void dropped(int dropped) {
+            long now = System.nanoTime();
+            long total = deviceDropped + ((dropped - droppedReport) & 0xFFFF);
+            droppedReport = dropped;
+            if (total > deviceDropped) {
+                deviceDropped = total;
+                if (now - lastSlowed >= roundTrip) {
+                    slowdown = Math.min(MAX_SLOWDOWN, slowdown * 2);
+                    lastSlowed = now;
+                }
+                resyncZones = true;
+            }
+        }
+
+        // A frame shown also acknowledges every packet received before it
+        @Override
+        public void rendered(long deviceMicros, int received) {
+            lastRenderMicros = deviceMicros;
+            rendered++;
+            if (restarted(received)) {
+                return;
+            }
+            long count = unwrap(received);
+            long latency = since(count, System.nanoTime());
+            if (latency >= 0) {
+                renderLatency = smooth(renderLatency, latency);
+            }
+            acknowledge(count);
+        }
+
+        // Counts packets as acknowledged, returning false if they already were. The count only moves forwards, as
+        // a frame report can lag the acks the device sent meanwhile.
+        private boolean acknowledge(long count) {
+            if (count <= acknowledged) {
+                return false;
+            }
+            acknowledged = count;
+            acknowledging = true;
+            slowdown = Math.max(1.0, slowdown * RECOVERY);
+            LockSupport.unpark(writer);
+            return true;
+        }
+
+        // A count far below the last one acknowledged means the device restarted and counts from 0 again. Its
+        // counts are then rebased on the packets sent by now, taking every one as received, as are its drops, and
+        // every zone is sent again in full, as the device no longer holds what was sent before. Returns whether it
+        // restarted.
+        private boolean restarted(int received) {
+            if (acknowledged - unwrap(received) < RESTART_GAP) {
+                return false;
+            }
+            long sent = packetsSent.get();
+            countOffset = sent - received;
+            droppedReport = 0;
+            resyncZones = true;
+            acknowledge(sent);
+            return true;
+        }
+
+        @Override
+        public void text(byte[] line, int length) {
+            System.out.println(new String(line, 0, length, StandardCharsets.US_ASCII));
+        }
     }
 
 }
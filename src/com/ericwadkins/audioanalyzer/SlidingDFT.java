@@ -0,0 +1,130 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Sliding DFT over a rectangular window of 16-bit mono PCM samples. Every new sample updates each bin in O(1), so
+ * a fresh spectrum is available after any number of samples without a full transform. Rounding errors in the
+ * recurrence accumulate, so the bins are periodically re-seeded from a full FFT of the window.
+ */
+public class SlidingDFT implements SpectrumSource {
+
+    private final int windowSize;
+    private final int hopSize;
+    private final int reseedInterval;
+    private final int bins;
+
+    // e^(2 pi i k / windowSize) for each bin
+    private final double[] cos;
+    private final double[] sin;
+
+    private final double[] ring;
+    private final double[] re;
+    private final double[] im;
+
+    private int position = 0;
+    private long written = 0;
+    private long lastFrame = 0;
+    private int sinceReseed = 0;
+
+    public SlidingDFT(int windowSize, int hopSize, int reseedInterval) {
+        if (hopSize <= 0) {
+            throw new IllegalArgumentException("Hop size must be positive");
+        }
+        if (reseedInterval <= 0) {
+            throw new IllegalArgumentException("Reseed interval must be positive");
+        }
+        this.windowSize = windowSize;
+        this.hopSize = hopSize;
+        this.reseedInterval = reseedInterval;
+        this.bins = windowSize / 2;
+        this.cos = new double[bins];
+        this.sin = new double[bins];
+        for (int k = 0; k < bins; k++) {
+            double kth = 2 * k * Math.PI / windowSize;
+            cos[k] = Math.cos(kth);
+            sin[k] = Math.sin(kth);
+        }
+        this.ring = new double[windowSize];
+        this.re = new double[bins];
+        this.im = new double[bins];
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    @Override
+    public int bins() {
+        return bins;
+    }
+
+    // Slides the window one sample at a time, re-seeding once the window is full and the interval has elapsed
+    @Override
+    public void write(byte[] signal, int offset, int length) {
+        for (int i = offset; i + 1 < offset + length; i += 2) {
+            add((double) ((signal[i] & 0xFF) | (signal[i + 1] << 8)) / 32768.0F);
+        }
+    }
+
+    @Override
+    public void write(ShortBuffer samples) {
+        for (int i = samples.position(); i < samples.limit(); i++) {
+            add((double) samples.get(i) / 32768.0F);
+        }
+    }
+
+    private void add(double sample) {
+        double delta = sample - ring[position];
+        ring[position] = sample;
+        position = position + 1 == windowSize ? 0 : position + 1;
+        written++;
+
+        for (int k = 0; k < bins; k++) {
+            double r = re[k] + delta;
+            re[k] = r * cos[k] - im[k] * sin[k];
+            im[k] = r * sin[k] + im[k] * cos[k];
+        }
+
+        if (written >= windowSize && ++sinceReseed >= reseedInterval) {
+            reseed();
+        }
+    }
+
+    // Recomputes every bin from a full transform of the window, oldest sample first
+    public void reseed() {
+        FFTPlan plan = FFTPlan.get(windowSize, false);
+        double[][] scratch = plan.scratch();
+        double[] windowRe = scratch[0];
+        double[] windowIm = scratch[1];
+        int first = windowSize - position;
+        System.arraycopy(ring, position, windowRe, 0, first);
+        System.arraycopy(ring, 0, windowRe, first, position);
+        for (int i = 0; i < windowSize; i++) {
+            windowIm[i] = 0.0;
+        }
+        plan.execute(windowRe, windowIm);
+        System.arraycopy(windowRe, 0, re, 0, bins);
+        System.arraycopy(windowIm, 0, im, 0, bins);
+        sinceReseed = 0;
+    }
+
+    // Whether the window is full and at least one hop has been written since the last frame
+    @Override
+    public boolean ready() {
+        return written >= windowSize && written - lastFrame >= hopSize;
+    }
+
+    @Override
+    public void frame(double[] spectrum) {
+        for (int k = 0; k < bins; k++) {
+            spectrum[k] = Math.sqrt(re[k] * re[k] + im[k] * im[k]);
+        }
+        lastFrame = written;
+    }
+
+}
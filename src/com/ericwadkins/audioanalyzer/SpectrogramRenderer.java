@@ -0,0 +1,111 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+
+/**
+ * Scrolling spectrogram of the processed spectra, newest on the right and low frequencies at the bottom, with one
+ * pixel column per frame and one pixel row per bin, stretched to the target when drawn.
+ *
+ * The columns live in an image used as a ring: each frame only writes its own column over the oldest one, and
+ * drawing unrolls the ring with two blits, the oldest columns first. Nothing is ever shifted or redrawn, so the
+ * cost of a frame is one column no matter how much history is shown, and the cost of drawing is two scaled copies.
+ *
+ * update() runs on the analysis thread and render() on the display's, so only render() touches the image.
+ * update() colors each frame's column into a queue of pending columns that render() moves into the image before
+ * drawing it, and the two only share the queue's counters. The queue holds as many columns as are shown; if the
+ * display does not draw for that long, later columns are dropped until it does, without the analysis waiting.
+ */
+public class SpectrogramRenderer implements FrameRenderer {
+
+    public static final int PALETTE_SIZE = 256;
+
+    private static final int[] PALETTE = new int[PALETTE_SIZE];
+
+    static {
+        // Dark blue through green and yellow to red, brightening quickly from black
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            float value = (float) i / (PALETTE_SIZE - 1);
+            PALETTE[i] = Color.HSBtoRGB(0.66f * (1 - value), 1.0f, Math.min(1.0f, 4 * value));
+        }
+    }
+
+    private final int columns;
+
+    // Columns colored by update() and not yet moved into the image, a ring indexed by column count
+    private final int[][] pending;
+    private volatile long written = 0; // Columns added by update()
+    private volatile long drawn = 0; // Columns moved into the image by render()
+
+    // Owned by render()
+    private BufferedImage ring;
+    private int next = 0; // Ring column the next frame is written to, the oldest column
+
+    // Shows the given number of frames
+    public SpectrogramRenderer(int columns) {
+        if (columns <= 0) {
+            throw new IllegalArgumentException("A spectrogram needs at least one column");
+        }
+        this.columns = columns;
+        pending = new int[columns][];
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    @Override
+    public void update(Analyzer.Frame frame) {
+        long count = written;
+        if (count - drawn == pending.length) {
+            return;
+        }
+        double[] processed = frame.processed;
+        int bins = processed.length;
+        int slot = (int) (count % pending.length);
+        int[] column = pending[slot];
+        if (column == null || column.length != bins) {
+            column = new int[bins];
+            pending[slot] = column;
+        }
+        for (int i = 0; i < bins; i++) {
+            int level = (int) (processed[i] * (PALETTE_SIZE - 1));
+            column[bins - 1 - i] = PALETTE[Math.max(0, Math.min(PALETTE_SIZE - 1, level))];
+        }
+        written = count + 1;
+    }
+
+    @Override
+    public void render(Graphics2D g, Analyzer.Frame frame, int width, int height) {
+        // Move the pending columns into the image
+        long count = written;
+        for (long c = drawn; c < count; c++) {
+            int[] column = pending[(int) (c % pending.length)];
+            int bins = column.length;
+            if (ring == null || ring.getHeight() != bins) {
+                // A new spectrum size starts an empty history
+                ring = new BufferedImage(columns, bins, BufferedImage.TYPE_INT_RGB);
+                next = 0;
+            }
+            // Writing through the raster keeps the image eligible for caching in video memory
+            WritableRaster raster = ring.getRaster();
+            raster.setDataElements(next, 0, 1, bins, column);
+            next = next + 1 == columns ? 0 : next + 1;
+        }
+        drawn = count;
+
+        if (ring == null) {
+            g.setColor(Color.BLACK);
+            g.fillRect(0, 0, width, height);
+            return;
+        }
+        int oldest = next;
+        int bins = ring.getHeight();
+        // The columns from the oldest to the end of the ring, then the rest up to the newest
+        int split = (int) ((long) (columns - oldest) * width / columns);
+        g.drawImage(ring, 0, 0, split, height, oldest, 0, columns, bins, null);
+        g.drawImage(ring, split, 0, width, height, 0, 0, oldest, bins, null);
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the spectrum processing chain over preallocated buffers. The smoothing filter, if wider than one bin, takes
+ * one pass and every point-wise stage is then fused into a second pass, instead of one pass and one allocation per
+ * step. A pipeline keeps per-frame state in its stages, so each analyzed stream needs its own instance.
+ */
+public class SpectrumPipeline {
+
+    private double[] filter = new double[] {1};
+    private final List<SpectrumStage> stages = new ArrayList<>();
+    private SpectrumStage[] active = new SpectrumStage[0];
+
+    // The chain used by Analyzer.process
+    public static SpectrumPipeline createDefault() {
+        return new SpectrumPipeline()
+                .filter(new double[] {1})
+                // Same as LogScale, ScaleRange(0, BASS_UPPER_BOUND, 0.5) and ScaleSurrounding(10)
+                .add(new GainMask(Analyzer.BASS_UPPER_BOUND, 0.5, 10))
+                // Normalize to range [0,1]
+                .add(new SpectrumStage.Limit(Analyzer.MAX_VALUE))
+                .add(new SpectrumStage.ScaleRange(0, 1.0, 1.0 / Analyzer.MAX_VALUE));
+    }
+
+    // Sets the smoothing filter applied before the stages, normalized as in Analyzer.applyFilter
+    public SpectrumPipeline filter(double[] filter) {
+        double mag = 0.0;
+        for (int i = 0; i < filter.length; i++) {
+            mag += Math.abs(filter[i]);
+        }
+        double[] normalized = new double[filter.length];
+        for (int i = 0; i < filter.length; i++) {
+            normalized[i] = filter[i] / mag;
+        }
+        this.filter = normalized;
+        return this;
+    }
+
+    public SpectrumPipeline add(SpectrumStage stage) {
+        stages.add(stage);
+        active = stages.toArray(new SpectrumStage[0]);
+        return this;
+    }
+
+    public SpectrumPipeline remove(SpectrumStage stage) {
+        stages.remove(stage);
+        active = stages.toArray(new SpectrumStage[0]);
+        return this;
+    }
+
+    public List<SpectrumStage> getStages() {
+        return new ArrayList<>(stages);
+    }
+
+    // Processes data into out, which must not be the same array as data when the filter is wider than one bin
+    public void run(double[] data, double[] out, List<Analyzer.Frame> stack) {
+        int length = data.length;
+        SpectrumStage[] stages = active;
+        for (SpectrumStage stage : stages) {
+            stage.prepare(length, stack);
+        }
+
+        if (filter.length == 1) {
+            double weight = filter[0];
+            for (int i = 0; i < length; i++) {
+                double value = Math.abs(0.0 + data[i] * weight);
+                for (SpectrumStage stage : stages) {
+                    value = stage.apply(i, value);
+                }
+                out[i] = value;
+            }
+            return;
+        }
+
+        // Same edge handling as Analyzer.applyFilter
+        int half = filter.length / 2;
+        for (int i = 0; i < length; i++) {
+            double sum = 0.0;
+            for (int j = -half; j <= (filter.length - 1) / 2; j++) {
+                int k = Math.min(length - 1, Math.max(0, i + j));
+                sum += data[k] * filter[j + half];
+            }
+            out[i] = Math.abs(sum);
+        }
+        for (int i = 0; i < length; i++) {
+            double value = out[i];
+            for (SpectrumStage stage : stages) {
+                value = stage.apply(i, value);
+            }
+            out[i] = value;
+        }
+    }
+
+}
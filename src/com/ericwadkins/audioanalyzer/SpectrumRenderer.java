@@ -0,0 +1,138 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Draws a frame: the processed spectrum as a line colored by frequency, its peaks, the intensity levels and the
+ * peak average, with the background flashing on bass hits.
+ *
+ * The colors only depend on the spectrum size, so they are computed once per size rather than once per bin per
+ * frame, and the spectrum line is split into runs of bins that share one of HUE_STEPS colors per cycle, so the
+ * color changes once per run rather than once per bin. The flashing background colors are tabulated too, so the
+ * renderer allocates nothing per frame; what remains in the benchmark is Java 2D's own Graphics per frame.
+ *
+ * The runs are drawn segment by segment: a single polyline per run was measured at about twice the cost with the
+ * two pixel stroke, because the software pipeline then strokes it as a general shape with joins.
+ */
+public class SpectrumRenderer implements FrameRenderer {
+
+    private static final Stroke STROKE = new BasicStroke(2);
+    private static final Color BACKGROUND = Color.BLACK;
+    private static final Color WHITE = Color.getHSBColor(0.0f, 0.0f, 1.0f);
+    private static final Color GRAY = Color.getHSBColor(0.0f, 0.0f, 0.5f);
+    private static final Color RED = Color.getHSBColor(0.0f, 1.0f, 0.5f);
+    public static final int HUE_STEPS = 32; // Distinct colors of the spectrum line per cycle through the hues
+
+    // Background flashes by brightness, on the 256 levels a color has: white, and red on big hits
+    private static final Color[] FLASH = new Color[256];
+    private static final Color[] RED_FLASH = new Color[256];
+
+    static {
+        for (int i = 0; i < FLASH.length; i++) {
+            FLASH[i] = Color.getHSBColor(0.0f, 0.0f, i / 255.0f);
+            RED_FLASH[i] = Color.getHSBColor(0.0f, 1.0f, i / 255.0f);
+        }
+    }
+
+    private int bins = -1;
+    private Color[] colors; // Color of each bin
+    private int[] runs; // First bin of each run of one color
+    private Color[] runColors;
+
+    // The color of a bin, cycling through the hues COLOR_SPECTRUMS times across the spectrum. Allocates, render()
+    // looks the colors up in tables built once per spectrum size.
+    public static Color color(int bin, int bins) {
+        return Color.getHSBColor(((float) bin * Analyzer.COLOR_SPECTRUMS / bins) % 1, 1.0f, 1.0f);
+    }
+
+    @Override
+    public void render(Graphics2D g, Analyzer.Frame frame, int width, int height) {
+        double[] processed = frame.processed;
+        prepare(processed.length);
+
+        g.setStroke(STROKE);
+        g.setColor(BACKGROUND);
+        g.fillRect(0, 0, width, height);
+        double xScale = (double) width / processed.length;
+        double yScale = height - Analyzer.BASELINE;
+        int base = height - Analyzer.BASELINE;
+
+        if (frame.maxBassIntensityDifference > 0.05) {
+            int level = Math.min(255, (int) ((float) frame.maxBassIntensityDifference * 255.0f + 0.5f));
+            g.setColor((frame.maxBassIntensityDifference > 0.4 ? RED_FLASH : FLASH)[level]);
+            g.fillRect(0, 0, width, height);
+        }
+        g.setColor(WHITE);
+        g.drawRect(0, base, width, 1);
+
+        g.setColor(GRAY);
+        g.drawRect(0, base - (int) ((frame.maxIntensity + 0.01) * yScale), (int) (processed.length * xScale), 3);
+
+        g.setColor(RED);
+        g.drawRect(0, base - (int) ((frame.maxBassIntensity + 0.01) * yScale),
+                (int) (processed.length * Analyzer.BASS_UPPER_BOUND * xScale), 3);
+
+        g.setColor(GRAY);
+        g.fillRect(0, base - (int) ((frame.averageIntensity + 0.01) * yScale), (int) (processed.length * xScale), 3);
+
+        g.setColor(RED);
+        g.fillRect(0, base - (int) ((frame.averageBassIntensity + 0.01) * yScale),
+                (int) (processed.length * Analyzer.BASS_UPPER_BOUND * xScale), 3);
+
+        for (int p = 0; p < frame.peaks.length; p++) {
+            int i = frame.peaks[p];
+            g.setColor(colors[i]);
+            g.fillRect((int) (i * xScale), base - (int) (processed[i] * yScale), (int) xScale,
+                    (int) (processed[i] * yScale));
+        }
+
+        g.setColor(colors[Math.min(processed.length - 1, Math.max(0, frame.peakAverage))]);
+        g.drawRect((int) (frame.peakAverage * xScale - 1), 0, 3, height);
+
+        // The spectrum, starting from the baseline at the left edge, changing color once per run of bins
+        int lastX = 0;
+        int lastY = base;
+        for (int r = 0; r < runs.length; r++) {
+            g.setColor(runColors[r]);
+            int end = r + 1 < runs.length ? runs[r + 1] : processed.length;
+            for (int i = runs[r]; i < end; i++) {
+                int x = (int) (i * xScale);
+                int y = base - Math.max(1, (int) (processed[i] * yScale));
+                g.drawLine(lastX, lastY, x, y);
+                lastX = x;
+                lastY = y;
+            }
+        }
+    }
+
+    // Rebuilds the color tables when the spectrum size changes
+    private void prepare(int bins) {
+        if (bins == this.bins) {
+            return;
+        }
+        colors = new Color[bins];
+        for (int i = 0; i < bins; i++) {
+            colors[i] = color(i, bins);
+        }
+
+        // Split the spectrum into runs of bins whose hues fall in the same step
+        int[] starts = new int[bins];
+        int count = 0;
+        int step = -1;
+        for (int i = 0; i < bins; i++) {
+            int s = (int) ((((float) i * Analyzer.COLOR_SPECTRUMS / bins) % 1) * HUE_STEPS);
+            if (s != step) {
+                starts[count++] = i;
+                step = s;
+            }
+        }
+        runs = Arrays.copyOf(starts, count);
+        runColors = new Color[count];
+        for (int r = 0; r < count; r++) {
+            runColors[r] = colors[runs[r]];
+        }
+        this.bins = bins;
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Turns a stream of 16-bit mono PCM samples into magnitude spectra at a fixed hop, independent of how the samples
+ * are split across reads.
+ */
+public interface SpectrumSource {
+
+    // Number of frequency bins in each spectrum
+    int bins();
+
+    // Appends 16-bit little endian PCM samples
+    void write(byte[] signal, int offset, int length);
+
+    // Appends the remaining samples of a buffer without moving its position
+    void write(ShortBuffer samples);
+
+    // Whether a new spectrum is available
+    boolean ready();
+
+    // Writes the magnitude spectrum of the most recent window into spectrum
+    void frame(double[] spectrum);
+
+}
@@ -0,0 +1,100 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.util.List;
+
+/**
+ * A point-wise step of the spectrum processing chain. A SpectrumPipeline prepares every stage once per frame and
+ * then pushes each bin through all stages in a single pass, so stages must not look at neighbouring bins.
+ */
+public interface SpectrumStage {
+
+    // Called once per frame before any bin is applied
+    default void prepare(int length, List<Analyzer.Frame> stack) {
+    }
+
+    // Returns the processed value of one bin
+    double apply(int bin, double value);
+
+    // Same as Analyzer.logScale
+    class LogScale implements SpectrumStage {
+        @Override
+        public double apply(int bin, double value) {
+            return value * Math.max(0, Math.log(bin * 2));
+        }
+    }
+
+    // Same as Analyzer.scaleRange, low and high are fractions of the spectrum length
+    class ScaleRange implements SpectrumStage {
+        private final double low;
+        private final double high;
+        private final double mult;
+        private int first;
+        private int last;
+
+        public ScaleRange(double low, double high, double mult) {
+            this.low = low;
+            this.high = high;
+            this.mult = mult;
+        }
+
+        @Override
+        public void prepare(int length, List<Analyzer.Frame> stack) {
+            first = (int) (low * length);
+            last = (int) (high * length);
+        }
+
+        @Override
+        public double apply(int bin, double value) {
+            return bin >= first && bin < last ? value * mult : value;
+        }
+    }
+
+    // Same as applying Analyzer.scaleSurrounding around the peak average of every frame in the stack, with more
+    // recent frames emphasised more
+    class ScaleSurrounding implements SpectrumStage {
+        private final double slope;
+        private int[] centers = new int[0];
+        private double[] mults = new double[0];
+        private int count;
+
+        public ScaleSurrounding(double slope) {
+            this.slope = slope;
+        }
+
+        @Override
+        public void prepare(int length, List<Analyzer.Frame> stack) {
+            count = stack.size();
+            if (centers.length < count) {
+                centers = new int[count];
+                mults = new double[count];
+            }
+            for (int i = 0; i < count; i++) {
+                centers[i] = stack.get(i).peakAverage;
+                mults[i] = 1 + Math.pow(0.5, count - i);
+            }
+        }
+
+        @Override
+        public double apply(int bin, double value) {
+            for (int i = 0; i < count; i++) {
+                value = value * Math.max(1, mults[i] - Math.abs(centers[i] - bin) / slope);
+            }
+            return value;
+        }
+    }
+
+    // Same as Analyzer.limit
+    class Limit implements SpectrumStage {
+        private final double limit;
+
+        public Limit(double limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public double apply(int bin, double value) {
+            return Math.min(limit, value);
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Parses the messages the device sends back, fed with whatever bytes the port delivers and without allocating.
+ *
+ * A message is framed as SYNC, its type, the length of its payload, the payload and a checksum, the XOR of the
+ * type, length and payload bytes. Multi-byte fields are little endian, as the device stores them:
+ *
+ *     ACK       u16 packets received so far, wrapping, sent as packets arrive
+ *     DROPPED   u16 packets dropped so far, wrapping, sent when the count changes
+ *     RENDERED  u32 device time in microseconds, u16 packets received when the frame was shown
+ *
+ * Anything outside a message is taken as text, which the device prints for debugging, and handed on a line at a
+ * time. A message that fails its checksum or has an impossible length is counted and dropped, and parsing picks up
+ * again at the next SYNC. Messages of unknown types are skipped, so the device can add new ones.
+ */
+public class TelemetryParser {
+
+    public static final int SYNC = 0xA5; // Not an ASCII character, so text never starts a message
+    public static final int ACK = 1;
+    public static final int DROPPED = 2;
+    public static final int RENDERED = 3;
+    public static final int MAX_PAYLOAD = 32;
+    public static final int MAX_LINE = 256; // Longer lines are handed on in pieces
+
+    public interface Listener {
+
+        void acknowledged(int received);
+
+        void dropped(int dropped);
+
+        void rendered(long deviceMicros, int received);
+
+        // A line of text without its line break, only valid during the call
+        default void text(byte[] line, int length) {
+        }
+    }
+
+    private enum State {
+        TEXT, TYPE, LENGTH, PAYLOAD, CHECKSUM
+    }
+
+    private final Listener listener;
+    private final byte[] payload = new byte[MAX_PAYLOAD];
+    private final byte[] line = new byte[MAX_LINE];
+    private State state = State.TEXT;
+    private int type;
+    private int length;
+    private int read;
+    private int checksum;
+    private int lineLength = 0;
+
+    private long messages = 0;
+    private long corrupt = 0;
+    private long unknown = 0;
+
+    public TelemetryParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Parses the next bytes from the device, calling the listener for every message and line they complete
+    public void feed(byte[] bytes, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            int b = bytes[i] & 0xFF;
+            switch (state) {
+                case TEXT:
+                    if (b == SYNC) {
+                        state = State.TYPE;
+                    }
+                    else {
+                        text(b);
+                    }
+                    break;
+                case TYPE:
+                    type = b;
+                    checksum = b;
+                    state = State.LENGTH;
+                    break;
+                case LENGTH:
+                    if (b > MAX_PAYLOAD) {
+                        corrupt++;
+                        state = State.TEXT;
+                        break;
+                    }
+                    length = b;
+                    read = 0;
+                    checksum ^= b;
+                    state = b == 0 ? State.CHECKSUM : State.PAYLOAD;
+                    break;
+                case PAYLOAD:
+                    payload[read++] = (byte) b;
+                    checksum ^= b;
+                    if (read == length) {
+                        state = State.CHECKSUM;
+                    }
+                    break;
+                case CHECKSUM:
+                    state = State.TEXT;
+                    if (b != checksum) {
+                        corrupt++;
+                    }
+                    else {
+                        dispatch();
+                    }
+                    break;
+            }
+        }
+    }
+
+    // Messages parsed and passed on
+    public long getMessages() {
+        return messages;
+    }
+
+    // Messages dropped for a bad checksum or length
+    public long getCorrupt() {
+        return corrupt;
+    }
+
+    // Messages skipped because their type is not known
+    public long getUnknown() {
+        return unknown;
+    }
+
+    private void dispatch() {
+        if (type == ACK && length == 2) {
+            listener.acknowledged(u16(0));
+        }
+        else if (type == DROPPED && length == 2) {
+            listener.dropped(u16(0));
+        }
+        else if (type == RENDERED && length == 6) {
+            listener.rendered(u32(0), u16(4));
+        }
+        else if (type == ACK || type == DROPPED || type == RENDERED) {
+            corrupt++;
+            return;
+        }
+        else {
+            unknown++;
+            return;
+        }
+        messages++;
+    }
+
+    private void text(int b) {
+        if (b == '\n') {
+            int end = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+            listener.text(line, end);
+            lineLength = 0;
+            return;
+        }
+        if (lineLength == line.length) {
+            listener.text(line, lineLength);
+            lineLength = 0;
+        }
+        line[lineLength++] = (byte) b;
+    }
+
+    private int u16(int offset) {
+        return (payload[offset] & 0xFF) | (payload[offset + 1] & 0xFF) << 8;
+    }
+
+    private long u32(int offset) {
+        return u16(offset) | (long) u16(offset + 2) << 16;
+    }
+
+    // Writers of each message, as the device sends them, returning the bytes written. Throw
+    // BufferOverflowException, writing nothing, if the message does not fit.
+
+    public static int writeAck(ByteBuffer buffer, int received) {
+        return write(buffer, ACK, 2, received & 0xFFFF, 0);
+    }
+
+    public static int writeDropped(ByteBuffer buffer, int dropped) {
+        return write(buffer, DROPPED, 2, dropped & 0xFFFF, 0);
+    }
+
+    public static int writeRendered(ByteBuffer buffer, long deviceMicros, int received) {
+        return write(buffer, RENDERED, 6, deviceMicros & 0xFFFFFFFFL, received & 0xFFFF);
+    }
+
+    // Writes a message whose payload is the low bytes of first, followed by the two bytes of second if it is longer
+    // than four bytes
+    private static int write(ByteBuffer buffer, int type, int length, long first, int second) {
+        if (buffer.remaining() < length + 4) {
+            throw new BufferOverflowException();
+        }
+        buffer.put((byte) SYNC);
+        buffer.put((byte) type);
+        buffer.put((byte) length);
+        int checksum = type ^ length;
+        for (int i = 0; i < length; i++) {
+            int b = i < 4 ? (int) (first >>> (8 * i)) & 0xFF : (second >>> (8 * (i - 4))) & 0xFF;
+            buffer.put((byte) b);
+            checksum ^= b;
+        }
+        buffer.put((byte) checksum);
+        return length + 4;
+    }
+
+}
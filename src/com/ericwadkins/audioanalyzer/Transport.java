@@ -0,0 +1,25 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The link SerialComm talks to the device over: a serial port, a pseudo-terminal or a pair of files, or an
+ * in-memory loopback. The streams are only valid between open() and close(). Whether closing ends a read already in
+ * progress depends on the link: it does for the loopback, but not for a read blocked on a pseudo-terminal or FIFO, so
+ * a reader must not rely on close() to stop it.
+ */
+public interface Transport extends Closeable {
+
+    void open() throws IOException;
+
+    InputStream getInputStream();
+
+    OutputStream getOutputStream();
+
+    // Bits per second the link carries, which writes are paced to, or 0 if it is not limited
+    int getBaudRate();
+
+}
@@ -0,0 +1,109 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A band of the processed spectrum that drives one light fixture, such as one LED strip. The band is given as
+ * fractions of the spectrum, so it covers the same frequencies whatever the sample rate and frame size.
+ */
+public class Zone {
+
+    public static final double MIDS_UPPER_BOUND = 0.25;
+    public static final double LOWEST_BAND = 0.01; // Upper bound of the lowest of bands(), the rest spaced evenly in log
+
+    public static final Zone BASS = new Zone("bass", 0, Analyzer.BASS_UPPER_BOUND);
+    public static final Zone MIDS = new Zone("mids", Analyzer.BASS_UPPER_BOUND, MIDS_UPPER_BOUND);
+    public static final Zone HIGHS = new Zone("highs", MIDS_UPPER_BOUND, 1);
+
+    private final String name;
+    private final double lower;
+    private final double upper;
+
+    public Zone(String name, double lower, double upper) {
+        if (lower < 0 || upper > 1 || lower >= upper) {
+            throw new IllegalArgumentException("Zone must be a range within 0-1");
+        }
+        this.name = name;
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public double getLower() {
+        return lower;
+    }
+
+    public double getUpper() {
+        return upper;
+    }
+
+    // First bin of the zone in a spectrum of the given size
+    public int first(int bins) {
+        return Math.min(bins - 1, (int) (lower * bins));
+    }
+
+    // Bin after the last of the zone, which always has at least one
+    public int end(int bins) {
+        return Math.max(first(bins) + 1, Math.min(bins, (int) (upper * bins)));
+    }
+
+    // The given number of bands covering the spectrum, spaced evenly in log frequency above the lowest
+    public static Zone[] bands(int count) {
+        if (count <= 0 || count > ZoneCodec.MAX_ZONES) {
+            throw new IllegalArgumentException("Band count must be in the range 1-" + ZoneCodec.MAX_ZONES);
+        }
+        Zone[] zones = new Zone[count];
+        double lower = 0;
+        for (int i = 0; i < count; i++) {
+            double upper = i == count - 1 ? 1 : Math.pow(LOWEST_BAND, 1 - (double) (i + 1) / count);
+            zones[i] = new Zone("band " + (i + 1), lower, upper);
+            lower = upper;
+        }
+        return zones;
+    }
+
+    // Parses a comma-separated list of zones: bass, mids, highs, a range such as 0.1-0.2, or bands:N for N bands
+    public static Zone[] parse(String spec) {
+        List<Zone> zones = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String item = part.trim().toLowerCase(Locale.ROOT);
+            if (item.equals("bass")) {
+                zones.add(BASS);
+            }
+            else if (item.equals("mids")) {
+                zones.add(MIDS);
+            }
+            else if (item.equals("highs")) {
+                zones.add(HIGHS);
+            }
+            else if (item.startsWith("bands:")) {
+                for (Zone zone : bands(Integer.parseInt(item.substring("bands:".length())))) {
+                    zones.add(zone);
+                }
+            }
+            else if (item.indexOf('-') > 0) {
+                int dash = item.indexOf('-');
+                zones.add(new Zone(item, Double.parseDouble(item.substring(0, dash)),
+                        Double.parseDouble(item.substring(dash + 1))));
+            }
+            else {
+                throw new IllegalArgumentException("Unknown zone: " + part);
+            }
+        }
+        if (zones.isEmpty() || zones.size() > ZoneCodec.MAX_ZONES) {
+            throw new IllegalArgumentException("Zone count must be in the range 1-" + ZoneCodec.MAX_ZONES);
+        }
+        return zones.toArray(new Zone[0]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s (%.3f-%.3f)", name, lower, upper);
+    }
+
+}
@@ -0,0 +1,488 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Encodes and decodes the changes of several zones in one packet, each value sent as a small difference from the
+ * value last sent for its zone whenever it can be. One codec sits on each end of the line and keeps the values the
+ * other end holds, so both must see every packet in order; resync() makes the next packets send values in full.
+ *
+ * A packet is packed from the lowest bit of its first byte upwards like a FrameEvent packet, and starts with a
+ * type of 0, which a FrameEvent never sends, so both kinds can share a line:
+ *
+ *     3 bits    0
+ *     5 bits    zones in the packet - 1, at most MAX_ENTRIES
+ *     per zone  the zone: 6 bits for the first, then 1 if it is the zone after the previous one, else 0 and 6 bits
+ *               3 bits of changes, as the type of a FrameEvent
+ *               per change: 1 and a signed difference of 5 bits for the hue, 4 bits for saturation or brightness,
+ *               or 0 and the value of 9 or 7 bits
+ *
+ * Hues wrap around, so a difference is taken the short way. A zone nudging its hue and brightness costs 15 bits, or
+ * 20 as the first zone of a packet, so with the 8-bit header a frame of 16 such zones takes 253 bits, 32 bytes,
+ * rather than the 48 of separate FrameEvent packets. 30 such frames a second would fill 9600 baud exactly, leaving
+ * nothing for other packets on the line, so 25 a second is a practical limit, leaving a sixth of the line free.
+ * main() fuzzes the codec and reports the sizes it reaches.
+ */
+public class ZoneCodec {
+
+    public static final int MAX_ZONES = 64;
+    public static final int MAX_ENTRIES = 32; // Zones in one packet, the rest go in the next
+
+    private static final int TYPE_BITS = 3;
+    private static final int ENTRY_COUNT_BITS = 5;
+    private static final int ZONE_BITS = 6;
+    private static final int HUE_BITS = 9;
+    private static final int LEVEL_BITS = 7; // Saturation and brightness
+    private static final int HUE_DELTA_BITS = 5;
+    private static final int LEVEL_DELTA_BITS = 4;
+    private static final int NO_DELTA = Integer.MIN_VALUE; // A value that is not sent as a difference
+    private static final int MAX_ENTRY_BITS = 1 + ZONE_BITS + TYPE_BITS + 1 + HUE_BITS + 2 * (1 + LEVEL_BITS);
+
+    public static final int MAX_LENGTH = 1 + (MAX_ENTRIES * MAX_ENTRY_BITS + 7) / 8;
+
+    // The values the other end holds, -1 where it is not known
+    private final int[] hues;
+    private final int[] saturations;
+    private final int[] brightnesses;
+
+    // Bits on their way to or from a buffer
+    private ByteBuffer buffer;
+    private int position;
+    private long bits;
+    private int count;
+
+    public ZoneCodec(int zones) {
+        if (zones <= 0 || zones > MAX_ZONES) {
+            throw new IllegalArgumentException("Zone count must be in the range 1-" + MAX_ZONES);
+        }
+        hues = new int[zones];
+        saturations = new int[zones];
+        brightnesses = new int[zones];
+        forget();
+    }
+
+    public int getZones() {
+        return hues.length;
+    }
+
+    // Whether a packet starting with this byte is a zone packet rather than a FrameEvent
+    public static boolean isZonePacket(byte first) {
+        return (first & ((1 << TYPE_BITS) - 1)) == 0;
+    }
+
+    // Adds every value the other end should hold to the changes of an event, keeping changes already in it, and
+    // forgets them, so they are sent in full. Used when packets may have been lost.
+    public void resync(ZoneEvent event) {
+        for (int zone = 0; zone < hues.length; zone++) {
+            int type = event.getType(zone);
+            if (hues[zone] >= 0 && (type & EventCodec.HUE_CHANGE) == 0) {
+                event.changeHue(zone, hues[zone]);
+            }
+            if (saturations[zone] >= 0 && (type & EventCodec.SATURATION_CHANGE) == 0) {
+                event.changeSaturation(zone, saturations[zone]);
+            }
+            if (brightnesses[zone] >= 0 && (type & EventCodec.BRIGHTNESS_CHANGE) == 0) {
+                event.changeBrightness(zone, brightnesses[zone]);
+            }
+        }
+        forget();
+    }
+
+    // Writes a packet with the changes of the first MAX_ENTRIES changed zones of an event at the buffer's position,
+    // removing them from the event, and returns its length, or 0 if the event is empty. Throws
+    // BufferOverflowException, writing and removing nothing, if the packet does not fit.
+    public int encode(ZoneEvent event, ByteBuffer buffer) {
+        checkZones(event);
+        long entries = 0;
+        int entryCount = 0;
+        for (long left = event.getChanged(); left != 0 && entryCount < MAX_ENTRIES; left &= left - 1) {
+            entries |= Long.lowestOneBit(left);
+            entryCount++;
+        }
+        if (entryCount == 0) {
+            return 0;
+        }
+
+        // Measure first, so nothing is written unless all of it fits
+        int total = TYPE_BITS + ENTRY_COUNT_BITS;
+        int previous = -1;
+        for (long left = entries; left != 0; left &= left - 1) {
+            int zone = Long.numberOfTrailingZeros(left);
+            int type = event.getType(zone);
+            total += (previous < 0 ? 0 : 1) + (previous < 0 || zone != previous + 1 ? ZONE_BITS : 0) + TYPE_BITS;
+            if ((type & EventCodec.HUE_CHANGE) != 0) {
+                total += 1 + (hueDelta(hues[zone], event.getHue(zone)) != NO_DELTA ? HUE_DELTA_BITS : HUE_BITS);
+            }
+            if ((type & EventCodec.SATURATION_CHANGE) != 0) {
+                total += 1 + (levelDelta(saturations[zone], event.getSaturation(zone)) != NO_DELTA
+                        ? LEVEL_DELTA_BITS : LEVEL_BITS);
+            }
+            if ((type & EventCodec.BRIGHTNESS_CHANGE) != 0) {
+                total += 1 + (levelDelta(brightnesses[zone], event.getBrightness(zone)) != NO_DELTA
+                        ? LEVEL_DELTA_BITS : LEVEL_BITS);
+            }
+            previous = zone;
+        }
+        int length = (total + 7) >> 3;
+        if (buffer.remaining() < length) {
+            throw new BufferOverflowException();
+        }
+
+        start(buffer);
+        put(0, TYPE_BITS);
+        put(entryCount - 1, ENTRY_COUNT_BITS);
+        previous = -1;
+        for (long left = entries; left != 0; left &= left - 1) {
+            int zone = Long.numberOfTrailingZeros(left);
+            int type = event.getType(zone);
+            if (previous >= 0) {
+                put(zone == previous + 1 ? 1 : 0, 1);
+            }
+            if (previous < 0 || zone != previous + 1) {
+                put(zone, ZONE_BITS);
+            }
+            put(type, TYPE_BITS);
+            if ((type & EventCodec.HUE_CHANGE) != 0) {
+                int value = event.getHue(zone);
+                putValue(hueDelta(hues[zone], value), HUE_DELTA_BITS, value, HUE_BITS);
+                hues[zone] = value;
+            }
+            if ((type & EventCodec.SATURATION_CHANGE) != 0) {
+                int value = event.getSaturation(zone);
+                putValue(levelDelta(saturations[zone], value), LEVEL_DELTA_BITS, value, LEVEL_BITS);
+                saturations[zone] = value;
+            }
+            if ((type & EventCodec.BRIGHTNESS_CHANGE) != 0) {
+                int value = event.getBrightness(zone);
+                putValue(levelDelta(brightnesses[zone], value), LEVEL_DELTA_BITS, value, LEVEL_BITS);
+                brightnesses[zone] = value;
+            }
+            event.clear(zone);
+            previous = zone;
+        }
+        flush();
+        return length;
+    }
+
+    // Reads the packet at the buffer's position into an event, replacing all of it with the full values of the
+    // zones the packet changes, and returns its length, or returns 0 and leaves everything untouched if the buffer
+    // does not hold the whole packet yet. Throws IllegalArgumentException for a packet that is not a zone packet,
+    // names a zone this codec does not have, or sends a difference from a value it never had. The values are not
+    // range checked.
+    public int decode(ByteBuffer buffer, ZoneEvent event) {
+        checkZones(event);
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        if (!isZonePacket(buffer.get(buffer.position()))) {
+            throw new IllegalArgumentException("Not a zone packet");
+        }
+        // Read through once to find the end, so nothing changes unless all of it has arrived
+        int length = read(buffer, null);
+        if (length > 0) {
+            event.clear();
+            read(buffer, event);
+            buffer.position(buffer.position() + length);
+        }
+        return length;
+    }
+
+    // Usage: ZoneCodec [steps] [seed]
+    // Fuzzes the codec between two ends, checking that the receiving end always holds what was sent, then reports
+    // the packet sizes of 16 zones moving the way lights usually do
+    public static void main(String[] args) {
+        int steps = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : System.nanoTime();
+        Random random = new Random(seed);
+        ByteBuffer buffer = ByteBuffer.allocate(4 * MAX_LENGTH);
+
+        int zones = 0;
+        ZoneCodec sender = null;
+        ZoneCodec receiver = null;
+        ZoneEvent pending = null;
+        ZoneEvent received = null;
+        int[][] sent = null;
+        int[][] held = null;
+        for (int step = 0; step < steps; step++) {
+            if (step % 1000 == 0) {
+                zones = 1 + random.nextInt(MAX_ZONES);
+                sender = new ZoneCodec(zones);
+                receiver = new ZoneCodec(zones);
+                pending = new ZoneEvent(zones);
+                received = new ZoneEvent(zones);
+                sent = new int[3][zones];
+                held = new int[3][zones];
+                for (int[] values : sent) {
+                    Arrays.fill(values, -1);
+                }
+                for (int[] values : held) {
+                    Arrays.fill(values, -1);
+                }
+            }
+
+            // Changes of a random set of zones, mostly small, merged into what is waiting to be sent
+            ZoneEvent event = new ZoneEvent(zones);
+            for (int zone = 0; zone < zones; zone++) {
+                if (random.nextInt(3) == 0) {
+                    continue;
+                }
+                if (random.nextBoolean()) {
+                    sent[0][zone] = random.nextInt(4) == 0 || sent[0][zone] < 0 ? random.nextInt(360)
+                            : Math.floorMod(sent[0][zone] + random.nextInt(33) - 16, 360);
+                    event.changeHue(zone, sent[0][zone]);
+                }
+                if (random.nextInt(4) == 0) {
+                    sent[1][zone] = random.nextInt(101);
+                    event.changeSaturation(zone, sent[1][zone]);
+                }
+                if (random.nextBoolean()) {
+                    sent[2][zone] = random.nextInt(4) == 0 || sent[2][zone] < 0 ? random.nextInt(101)
+                            : Math.max(0, Math.min(100, sent[2][zone] + random.nextInt(17) - 8));
+                    event.changeBrightness(zone, sent[2][zone]);
+                }
+            }
+            pending.merge(event);
+            if (random.nextInt(100) == 0) {
+                sender.resync(pending);
+            }
+
+            // Send everything waiting, in packets decoded as their bytes arrive in random pieces
+            buffer.clear();
+            while (!pending.isEmpty()) {
+                sender.encode(pending, buffer);
+            }
+            buffer.flip();
+            int end = buffer.limit();
+            buffer.limit(buffer.position());
+            while (buffer.position() < end) {
+                buffer.limit(Math.min(end, buffer.limit() + 1 + random.nextInt(8)));
+                int start = buffer.position();
+                int length;
+                while ((length = receiver.decode(buffer, received)) > 0) {
+                    for (int zone = 0; zone < zones; zone++) {
+                        int type = received.getType(zone);
+                        if ((type & EventCodec.HUE_CHANGE) != 0) {
+                            held[0][zone] = received.getHue(zone);
+                        }
+                        if ((type & EventCodec.SATURATION_CHANGE) != 0) {
+                            held[1][zone] = received.getSaturation(zone);
+                        }
+                        if ((type & EventCodec.BRIGHTNESS_CHANGE) != 0) {
+                            held[2][zone] = received.getBrightness(zone);
+                        }
+                    }
+                    start = buffer.position();
+                }
+                if (buffer.position() != start) {
+                    throw new IllegalStateException("A packet cut short moved the buffer (seed " + seed + ")");
+                }
+            }
+            if (!Arrays.deepEquals(sent, held)) {
+                throw new IllegalStateException("Receiver holds " + Arrays.deepToString(held) + " instead of "
+                        + Arrays.deepToString(sent) + " (seed " + seed + ")");
+            }
+        }
+        System.out.println(steps + " steps sent and received the same values (seed " + seed + ")");
+
+        // 16 zones whose brightness follows the music and whose hue drifts, every zone changing every frame
+        int frames = 10_000;
+        ZoneCodec codec = new ZoneCodec(16);
+        ZoneEvent event = new ZoneEvent(16);
+        int[] hue = new int[16];
+        int[] brightness = new int[16];
+        long bytes = 0;
+        long single = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            for (int zone = 0; zone < 16; zone++) {
+                hue[zone] = Math.floorMod(hue[zone] + random.nextInt(7) - 3, 360);
+                brightness[zone] = Math.max(0, Math.min(100, brightness[zone] + random.nextInt(13) - 6));
+                event.changeHue(zone, hue[zone]);
+                event.changeBrightness(zone, brightness[zone]);
+                single += EventCodec.length(EventCodec.HUE_CHANGE | EventCodec.BRIGHTNESS_CHANGE);
+            }
+            while (!event.isEmpty()) {
+                buffer.clear();
+                bytes += codec.encode(event, buffer);
+            }
+        }
+        double perFrame = (double) bytes / frames;
+        System.out.println(String.format(Locale.ROOT, "16 zones changing hue and brightness every frame: %.1f bytes "
+                        + "a frame rather than %.1f as separate packets, filling 9600 baud at %.1f frames a second",
+                perFrame, (double) single / frames, 9600.0 / SerialComm.BITS_PER_BYTE / perFrame));
+    }
+
+    // The difference of a hue from the last one the short way round, or NO_DELTA if it is unknown or too large
+    private static int hueDelta(int last, int value) {
+        if (last < 0) {
+            return NO_DELTA;
+        }
+        int delta = Math.floorMod(value - last + 180, 360) - 180;
+        return fits(delta, HUE_DELTA_BITS) ? delta : NO_DELTA;
+    }
+
+    private static int levelDelta(int last, int value) {
+        if (last < 0) {
+            return NO_DELTA;
+        }
+        int delta = value - last;
+        return fits(delta, LEVEL_DELTA_BITS) ? delta : NO_DELTA;
+    }
+
+    private static boolean fits(int delta, int bits) {
+        return delta >= -(1 << (bits - 1)) && delta < 1 << (bits - 1);
+    }
+
+    // Parses the packet at the buffer's position without moving it, returning its length or 0 if it has not all
+    // arrived. Only stores the values, in the event and as held by the other end, if an event is given.
+    private int read(ByteBuffer buffer, ZoneEvent event) {
+        start(buffer);
+        if (take(TYPE_BITS) != 0) {
+            throw new IllegalArgumentException("Not a zone packet");
+        }
+        int entryCount = take(ENTRY_COUNT_BITS) + 1;
+        int zone = -1;
+        for (int e = 0; e < entryCount; e++) {
+            int next = e > 0 ? take(1) : 0;
+            if (next < 0) {
+                return 0;
+            }
+            zone = next == 1 ? zone + 1 : take(ZONE_BITS);
+            if (zone < 0) {
+                return 0;
+            }
+            if (zone >= hues.length) {
+                throw new IllegalArgumentException("Zone " + zone + " out of range");
+            }
+            int type = take(TYPE_BITS);
+            if (type < 0) {
+                return 0;
+            }
+            int hue = 0;
+            int saturation = 0;
+            int brightness = 0;
+            if ((type & EventCodec.HUE_CHANGE) != 0) {
+                hue = takeValue(hues[zone], HUE_DELTA_BITS, HUE_BITS, 360);
+                if (hue == NO_DELTA) {
+                    return 0;
+                }
+            }
+            if ((type & EventCodec.SATURATION_CHANGE) != 0) {
+                saturation = takeValue(saturations[zone], LEVEL_DELTA_BITS, LEVEL_BITS, 0);
+                if (saturation == NO_DELTA) {
+                    return 0;
+                }
+            }
+            if ((type & EventCodec.BRIGHTNESS_CHANGE) != 0) {
+                brightness = takeValue(brightnesses[zone], LEVEL_DELTA_BITS, LEVEL_BITS, 0);
+                if (brightness == NO_DELTA) {
+                    return 0;
+                }
+            }
+            if (event != null) {
+                event.set(zone, type, hue, saturation, brightness);
+                if ((type & EventCodec.HUE_CHANGE) != 0) {
+                    hues[zone] = hue;
+                }
+                if ((type & EventCodec.SATURATION_CHANGE) != 0) {
+                    saturations[zone] = saturation;
+                }
+                if ((type & EventCodec.BRIGHTNESS_CHANGE) != 0) {
+                    brightnesses[zone] = brightness;
+                }
+            }
+        }
+        return position - buffer.position();
+    }
+
+    private void forget() {
+        Arrays.fill(hues, -1);
+        Arrays.fill(saturations, -1);
+        Arrays.fill(brightnesses, -1);
+    }
+
+    private void checkZones(ZoneEvent event) {
+        if (event.getZones() != hues.length) {
+            throw new IllegalArgumentException("Event has " + event.getZones() + " zones, codec has " + hues.length);
+        }
+    }
+
+    private void start(ByteBuffer buffer) {
+        this.buffer = buffer;
+        position = buffer.position();
+        bits = 0;
+        count = 0;
+    }
+
+    private void put(int value, int length) {
+        bits |= (long) (value & ((1 << length) - 1)) << count;
+        count += length;
+        while (count >= 8) {
+            buffer.put((byte) bits);
+            bits >>>= 8;
+            count -= 8;
+        }
+    }
+
+    // Writes the flag and difference if there is one, else the flag and the value
+    private void putValue(int delta, int deltaBits, int value, int valueBits) {
+        if (delta != NO_DELTA) {
+            put(1, 1);
+            put(delta, deltaBits);
+        }
+        else {
+            put(0, 1);
+            put(value, valueBits);
+        }
+    }
+
+    private void flush() {
+        if (count > 0) {
+            buffer.put((byte) bits);
+        }
+        bits = 0;
+        count = 0;
+    }
+
+    // Reads the next bits, or returns -1 if the buffer ends first
+    private int take(int length) {
+        while (count < length) {
+            if (position == buffer.limit()) {
+                return -1;
+            }
+            bits |= (long) (buffer.get(position++) & 0xFF) << count;
+            count += 8;
+        }
+        int value = (int) bits & ((1 << length) - 1);
+        bits >>>= length;
+        count -= length;
+        return value;
+    }
+
+    // Reads a flag and a difference from the last value, wrapped around if a wrap is given, or a flag and a value,
+    // returning NO_DELTA if the buffer ends first
+    private int takeValue(int last, int deltaBits, int valueBits, int wrap) {
+        int flag = take(1);
+        if (flag < 0) {
+            return NO_DELTA;
+        }
+        if (flag == 0) {
+            int value = take(valueBits);
+            return value < 0 ? NO_DELTA : value;
+        }
+        int delta = take(deltaBits);
+        if (delta < 0) {
+            return NO_DELTA;
+        }
+        if (last < 0) {
+            throw new IllegalArgumentException("Difference from a value never received");
+        }
+        // Sign extend the difference
+        int value = last + (delta << (32 - deltaBits) >> (32 - deltaBits));
+        return wrap > 0 ? Math.floorMod(value, wrap) : value;
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.ericwadkins.audioanalyzer;
+
+/**
+ * The changes of several zones, each a hue, saturation and brightness like a FrameEvent, with a mask of the zones
+ * that changed anything.
+ */
+public class ZoneEvent {
+
+    private final int[] types;
+    private final int[] hues;
+    private final int[] saturations;
+    private final int[] brightnesses;
+    private long changed = 0; // Bit per zone
+
+    public ZoneEvent(int zones) {
+        if (zones <= 0 || zones > ZoneCodec.MAX_ZONES) {
+            throw new IllegalArgumentException("Zone count must be in the range 1-" + ZoneCodec.MAX_ZONES);
+        }
+        types = new int[zones];
+        hues = new int[zones];
+        saturations = new int[zones];
+        brightnesses = new int[zones];
+    }
+
+    public int getZones() {
+        return types.length;
+    }
+
+    public void changeHue(int zone, int hue) {
+        if (hue < 0 || hue > 359) {
+            throw new IllegalArgumentException("Hue must be in the range 0-359");
+        }
+        hues[zone] = hue;
+        change(zone, EventCodec.HUE_CHANGE);
+    }
+
+    public void changeSaturation(int zone, int saturation) {
+        if (saturation < 0 || saturation > 100) {
+            throw new IllegalArgumentException("Saturation must be in the range 0-100");
+        }
+        saturations[zone] = saturation;
+        change(zone, EventCodec.SATURATION_CHANGE);
+    }
+
+    public void changeBrightness(int zone, int brightness) {
+        if (brightness < 0 || brightness > 100) {
+            throw new IllegalArgumentException("Brightness must be in the range 0-100");
+        }
+        brightnesses[zone] = brightness;
+        change(zone, EventCodec.BRIGHTNESS_CHANGE);
+    }
+
+    // The changes of a zone, as the type of a FrameEvent
+    public int getType(int zone) {
+        return types[zone];
+    }
+
+    // The values are only meaningful when the type of the zone says they changed
+    public int getHue(int zone) {
+        return hues[zone];
+    }
+
+    public int getSaturation(int zone) {
+        return saturations[zone];
+    }
+
+    public int getBrightness(int zone) {
+        return brightnesses[zone];
+    }
+
+    // Bit per zone that changed anything
+    public long getChanged() {
+        return changed;
+    }
+
+    public boolean isEmpty() {
+        return changed == 0;
+    }
+
+    // Number of zones that changed anything
+    public int count() {
+        return Long.bitCount(changed);
+    }
+
+    // Takes on every change of another event of as many zones, keeping the changes of this one the other does not
+    // make, returning how many zones had changes replaced
+    int merge(ZoneEvent other) {
+        int replaced = 0;
+        for (long left = other.changed; left != 0; left &= left - 1) {
+            int zone = Long.numberOfTrailingZeros(left);
+            int type = other.types[zone];
+            if ((types[zone] & type) != 0) {
+                replaced++;
+            }
+            if ((type & EventCodec.HUE_CHANGE) != 0) {
+                hues[zone] = other.hues[zone];
+            }
+            if ((type & EventCodec.SATURATION_CHANGE) != 0) {
+                saturations[zone] = other.saturations[zone];
+            }
+            if ((type & EventCodec.BRIGHTNESS_CHANGE) != 0) {
+                brightnesses[zone] = other.brightnesses[zone];
+            }
+            types[zone] |= type;
+        }
+        changed |= other.changed;
+        return replaced;
+    }
+
+    // Replaces the values of a zone, without checking them
+    void set(int zone, int type, int hue, int saturation, int brightness) {
+        types[zone] = type;
+        hues[zone] = hue;
+        saturations[zone] = saturation;
+        brightnesses[zone] = brightness;
+        if (type != 0) {
+            changed |= 1L << zone;
+        }
+        else {
+            changed &= ~(1L << zone);
+        }
+    }
+
+    void clear(int zone) {
+        set(zone, 0, 0, 0, 0);
+    }
+
+    void clear() {
+        for (long left = changed; left != 0; left &= left - 1) {
+            clear(Long.numberOfTrailingZeros(left));
+        }
+    }
+
+    private void change(int zone, int type) {
+        types[zone] |= type;
+        changed |= 1L << zone;
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.ericwadkins.audioanalyzer;
+
+import java.util.Arrays;
+
+/**
+ * Turns analyzed frames into color events for several zones, only including the values that changed since the last
+ * event, like EventGenerator does for a single fixture.
+ *
+ * Each zone is colored by its own band of the processed spectrum: the hue of the band's intensity-weighted center,
+ * colored like the spectrum display, the brightness of its loudest bin, and white when that jumps by more than
+ * FLASH_DIFFERENCE from one frame to the next, as the single fixture flashes white on bass hits.
+ */
+public class ZoneGenerator {
+
+    public static final double FLASH_DIFFERENCE = 0.4;
+
+    private final Zone[] zones;
+    private final int[] lastHue;
+    private final int[] lastSaturation;
+    private final int[] lastBrightness;
+    private final double[] lastLevel;
+    private final ZoneEvent event; // Returned by every call to next()
+
+    public ZoneGenerator(Zone[] zones) {
+        if (zones.length == 0 || zones.length > ZoneCodec.MAX_ZONES) {
+            throw new IllegalArgumentException("Zone count must be in the range 1-" + ZoneCodec.MAX_ZONES);
+        }
+        this.zones = zones.clone();
+        lastHue = new int[zones.length];
+        lastSaturation = new int[zones.length];
+        lastBrightness = new int[zones.length];
+        lastLevel = new double[zones.length];
+        event = new ZoneEvent(zones.length);
+        Arrays.fill(lastHue, -1);
+        Arrays.fill(lastSaturation, -1);
+        Arrays.fill(lastBrightness, -1);
+    }
+
+    public Zone[] getZones() {
+        return zones.clone();
+    }
+
+    // Returns the event for the frame, which is empty if nothing changed. The same event is cleared and returned
+    // again by the next call, so it must be used or copied before then.
+    public ZoneEvent next(Analyzer.Frame frame) {
+        double[] processed = frame.processed;
+        int bins = processed.length;
+        event.clear();
+        for (int z = 0; z < zones.length; z++) {
+            int first = zones[z].first(bins);
+            int end = zones[z].end(bins);
+            double total = 0;
+            double weighted = 0;
+            double level = 0;
+            for (int i = first; i < end; i++) {
+                total += processed[i];
+                weighted += processed[i] * i;
+                level = Math.max(level, processed[i]);
+            }
+            double center = total > 0 ? weighted / total : first;
+
+            int hue = (int) (((center * Analyzer.COLOR_SPECTRUMS / bins) % 1) * 360);
+            int saturation = level - lastLevel[z] > FLASH_DIFFERENCE ? 0 : 100;
+            int brightness = (int) Math.round(Math.min(1.0, level) * 100);
+            lastLevel[z] = level;
+
+            if (hue != lastHue[z]) {
+                event.changeHue(z, hue);
+                lastHue[z] = hue;
+            }
+            if (saturation != lastSaturation[z]) {
+                event.changeSaturation(z, saturation);
+                lastSaturation[z] = saturation;
+            }
+            if (brightness != lastBrightness[z]) {
+                event.changeBrightness(z, brightness);
+                lastBrightness[z] = brightness;
+            }
+        }
+        return event;
+    }
+
+}